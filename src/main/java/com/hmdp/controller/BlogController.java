@@ -33,13 +33,8 @@ public class BlogController {
 
     @PostMapping
     public Result saveBlog(@RequestBody Blog blog) {
-        // 获取登录用户
-        UserDTO user = UserHolder.getUser();
-        blog.setUserId(user.getId());
-        // 保存探店博文
-        blogService.save(blog);
-        // 返回id
-        return Result.ok(blog.getId());
+        // 保存探店博文并推送给粉丝
+        return blogService.saveBlog(blog);
     }
 
     @PutMapping("/like/{id}")
@@ -73,4 +68,15 @@ public class BlogController {
     public Result queryBlogLikes(@PathVariable("id") Long id) {
         return Result.ok(blogService.queryBlogLikes(id));
     }
+
+    /**
+     * 关注的人发布的博文
+     * @param max    上一页的最小时间戳，第一页不传
+     * @param offset 上一页最小时间戳出现的次数，第一页为0
+     */
+    @GetMapping("/of/follow")
+    public Result queryBlogOfFollow(@RequestParam(value = "lastId", required = false) Long max,
+                                    @RequestParam(value = "offset", defaultValue = "0") Integer offset) {
+        return blogService.queryBlogOfFollow(max, offset);
+    }
 }
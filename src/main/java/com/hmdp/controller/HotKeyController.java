@@ -0,0 +1,42 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 热点key管理
+ * </p>
+ */
+@RestController
+@RequestMapping("/hot-key")
+public class HotKeyController {
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private CacheClient cacheClient;
+
+    /**
+     * 查询当前热点key和提升、降级次数
+     */
+    @GetMapping
+    public Result queryHotKeys() {
+        return Result.ok(hotKeyDetector.snapshot());
+    }
+
+    /**
+     * 查询逻辑过期key刷新线程池的排队、完成和拒绝次数
+     */
+    @GetMapping("/refresh")
+    public Result queryRefreshStats() {
+        return Result.ok(cacheClient.refreshStats());
+    }
+}
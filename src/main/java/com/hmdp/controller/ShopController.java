@@ -1,15 +1,16 @@
 package com.hmdp.controller;
 
 
-import cn.hutool.core.util.StrUtil;
-import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.service.IShopService;
-import com.hmdp.utils.SystemConstants;
+import com.hmdp.utils.ResultWriter;
+import com.hmdp.utils.ShopSpatialIndex;
 import org.springframework.web.bind.annotation.*;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
 
 /**
  * <p>
@@ -26,16 +27,24 @@ public class ShopController {
     @Resource
     public IShopService shopService;
 
+    @Resource
+    private ResultWriter resultWriter;
+
 
 
     /**
      * 根据id查询商铺信息
+     * 缓存中的数据直接转成JSON拼接到Result中写出，不创建Shop对象
      * @param id 商铺id
-     * @return 商铺详情数据
      */
     @GetMapping("/{id}")
-    public Result queryShopById(@PathVariable("id") Long id) {
-        return shopService.queryById(id);
+    public void queryShopById(@PathVariable("id") Long id, HttpServletResponse response) throws IOException {
+        byte[] shop = shopService.queryJsonById(id);
+        if (shop == null) {
+            resultWriter.write(response, Result.fail("Shop not found"));
+            return;
+        }
+        resultWriter.writeOk(response, shop);
     }
 
     /**
@@ -45,8 +54,8 @@ public class ShopController {
      */
     @PostMapping
     public Result saveShop(@RequestBody Shop shop) {
-        // 写入数据库
-        shopService.save(shop);
+        // 写入数据库，加入布隆过滤器，使分页缓存失效
+        shopService.saveShop(shop);
         // 返回店铺id
         return Result.ok(shop.getId());
     }
@@ -66,19 +75,44 @@ public class ShopController {
      * 根据商铺类型分页查询商铺信息
      * @param typeId 商铺类型
      * @param current 页码
+     * @param x 经度，传入坐标时按距离排序
+     * @param y 纬度
      * @return 商铺列表
      */
     @GetMapping("/of/type")
     public Result queryShopByType(
             @RequestParam("typeId") Integer typeId,
+            @RequestParam(value = "current", defaultValue = "1") Integer current,
+            @RequestParam(value = "x", required = false) Double x,
+            @RequestParam(value = "y", required = false) Double y
+    ) {
+        // 分页缓存或GEO中查询id，再批量从店铺缓存中查询店铺
+        return Result.ok(shopService.queryByType(typeId, current, x, y));
+    }
+
+    /**
+     * 附近商铺，可以按类型、人均价格和评分筛选
+     * @param x 经度
+     * @param y 纬度
+     * @param current 页码
+     * @return 商铺列表，按距离由近到远
+     */
+    @GetMapping("/of/nearby")
+    public Result queryShopNearby(
+            @RequestParam("x") Double x,
+            @RequestParam("y") Double y,
+            @RequestParam(value = "typeId", required = false) Long typeId,
+            @RequestParam(value = "minPrice", required = false) Long minPrice,
+            @RequestParam(value = "maxPrice", required = false) Long maxPrice,
+            @RequestParam(value = "minScore", required = false) Integer minScore,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .eq("type_id", typeId)
-                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        ShopSpatialIndex.Filter filter = new ShopSpatialIndex.Filter();
+        filter.setTypeId(typeId);
+        filter.setMinPrice(minPrice);
+        filter.setMaxPrice(maxPrice);
+        filter.setMinScore(minScore);
+        return Result.ok(shopService.queryNearby(x, y, filter, current));
     }
 
     /**
@@ -92,11 +126,7 @@ public class ShopController {
             @RequestParam(value = "name", required = false) String name,
             @RequestParam(value = "current", defaultValue = "1") Integer current
     ) {
-        // 根据类型分页查询
-        Page<Shop> page = shopService.query()
-                .like(StrUtil.isNotBlank(name), "name", name)
-                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
-        // 返回数据
-        return Result.ok(page.getRecords());
+        // 分页缓存中查询id，再批量从店铺缓存中查询店铺
+        return Result.ok(shopService.queryByName(name, current));
     }
 }
@@ -3,11 +3,15 @@ package com.hmdp.controller;
 
 import com.hmdp.dto.Result;
 import com.hmdp.service.IShopTypeService;
+import com.hmdp.utils.ResultWriter;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RestController;
 
 import javax.annotation.Resource;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collections;
 
 /**
  * <p>
@@ -23,8 +27,16 @@ public class ShopTypeController {
     @Resource
     private IShopTypeService typeService;
 
+    @Resource
+    private ResultWriter resultWriter;
+
     @GetMapping("list")
-    public Result queryTypeList() {
-        return Result.ok(typeService.queryTypeList());
+    public void queryTypeList(HttpServletResponse response) throws IOException {
+        byte[] typeList = typeService.queryTypeListJson();
+        if (typeList == null) {
+            resultWriter.write(response, Result.ok(Collections.emptyList()));
+            return;
+        }
+        resultWriter.writeOk(response, typeList);
     }
 }
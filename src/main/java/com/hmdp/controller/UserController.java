@@ -82,4 +82,29 @@ public class UserController {
         // 返回
         return Result.ok(info);
     }
+
+    /**
+     * 今日签到
+     */
+    @PostMapping("/sign")
+    public Result sign() {
+        return userService.sign();
+    }
+
+    /**
+     * 截止今天的连续签到天数
+     */
+    @GetMapping("/sign/count")
+    public Result signCount() {
+        return userService.signCount();
+    }
+
+    /**
+     * 某月的签到统计
+     * @param month yyyyMM，默认本月
+     */
+    @GetMapping("/sign/stats")
+    public Result signStats(@RequestParam(value = "month", required = false) String month) {
+        return userService.signStats(month);
+    }
 }
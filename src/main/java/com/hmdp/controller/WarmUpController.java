@@ -0,0 +1,31 @@
+package com.hmdp.controller;
+
+
+import com.hmdp.dto.Result;
+import com.hmdp.utils.CacheWarmer;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.annotation.Resource;
+
+/**
+ * <p>
+ * 缓存预热
+ * </p>
+ */
+@RestController
+@RequestMapping("/warm-up")
+public class WarmUpController {
+
+    @Resource
+    private CacheWarmer cacheWarmer;
+
+    /**
+     * 查询预热进度和耗时
+     */
+    @GetMapping
+    public Result queryProgress() {
+        return Result.ok(cacheWarmer.progress());
+    }
+}
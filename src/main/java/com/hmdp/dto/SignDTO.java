@@ -0,0 +1,29 @@
+package com.hmdp.dto;
+
+import lombok.Data;
+
+import java.util.List;
+
+@Data
+public class SignDTO {
+    /**
+     * 月份 yyyyMM
+     */
+    private String month;
+    /**
+     * 本月签到天数
+     */
+    private Integer count;
+    /**
+     * 截止今天（往月截止月末）的连续签到天数
+     */
+    private Integer streak;
+    /**
+     * 本月最长连续签到天数
+     */
+    private Integer maxStreak;
+    /**
+     * 本月签到的日期
+     */
+    private List<Integer> days;
+}
@@ -0,0 +1,56 @@
+package com.hmdp.entity;
+
+import com.baomidou.mybatisplus.annotation.IdType;
+import com.baomidou.mybatisplus.annotation.TableId;
+import com.baomidou.mybatisplus.annotation.TableName;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.experimental.Accessors;
+
+import java.io.Serializable;
+
+/**
+ * <p>
+ * 用户一个月的签到记录
+ * </p>
+ *
+ * @author 虎哥
+ * @since 2021-12-22
+ */
+@Data
+@EqualsAndHashCode(callSuper = false)
+@Accessors(chain = true)
+@TableName("tb_sign")
+public class Sign implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 主键
+     */
+    @TableId(value = "id", type = IdType.AUTO)
+    private Long id;
+
+    /**
+     * 用户id
+     */
+    private Long userId;
+
+    /**
+     * 签到的年
+     */
+    private Integer year;
+
+    /**
+     * 签到的月
+     */
+    private Integer month;
+
+    /**
+     * 当月的签到记录，低32位中最高位是1号，与Redis中bitmap的位顺序相同；
+     * 列是无符号int，1号签到时超出int范围，所以用Long
+     */
+    private Long bits;
+
+
+}
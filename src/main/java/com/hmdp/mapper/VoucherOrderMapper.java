@@ -2,6 +2,9 @@ package com.hmdp.mapper;
 
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 /**
  * <p>
@@ -13,4 +16,10 @@ import com.baomidou.mybatisplus.core.mapper.BaseMapper;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行插入订单 INSERT IGNORE INTO ... VALUES (...),(...)，同一用户同一优惠券已有订单的行跳过
+     * @param orders 订单列表，不能为空
+     * @return 实际插入行数
+     */
+    int insertBatch(@Param("orders") List<VoucherOrder> orders);
 }
@@ -21,4 +21,16 @@ public interface IBlogService extends IService<Blog> {
     Result likeBlog(Long id);
 
     Result queryBlogLikes(Long id);
+
+    /**
+     * 保存博文并推送到粉丝的收件箱
+     */
+    Result saveBlog(Blog blog);
+
+    /**
+     * 滚动分页查询关注的人发布的博文
+     * @param max    上一页的最小时间戳，第一页为空
+     * @param offset 上一页最小时间戳出现的次数
+     */
+    Result queryBlogOfFollow(Long max, Integer offset);
 }
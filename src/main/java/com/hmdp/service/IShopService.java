@@ -2,8 +2,11 @@ package com.hmdp.service;
 
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
+import com.hmdp.utils.ShopSpatialIndex;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -16,5 +19,37 @@ public interface IShopService extends IService<Shop> {
 
     Result queryById(Long id);
 
+    /**
+     * 查询店铺详情的JSON，缓存命中时不创建Shop对象
+     *
+     * @return null代表店铺不存在
+     */
+    byte[] queryJsonById(Long id);
+
     Result updateShop(Shop shop);
+
+    List<Shop> queryByIds(List<Long> ids);
+
+    /**
+     * 新增店铺，使店铺列表的分页缓存失效
+     */
+    void saveShop(Shop shop);
+
+    /**
+     * 根据类型分页查询，分页缓存中只保存店铺id；传入坐标时按距离由近到远排序
+     *
+     * @param x 经度，可以为null
+     * @param y 纬度，可以为null
+     */
+    List<Shop> queryByType(Integer typeId, Integer current, Double x, Double y);
+
+    /**
+     * 附近店铺，在内存索引中按类型、价格和评分过滤后按距离由近到远分页
+     */
+    List<Shop> queryNearby(Double x, Double y, ShopSpatialIndex.Filter filter, Integer current);
+
+    /**
+     * 根据名称关键字分页查询，分页缓存中只保存店铺id
+     */
+    List<Shop> queryByName(String name, Integer current);
 }
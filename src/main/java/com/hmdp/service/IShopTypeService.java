@@ -1,7 +1,6 @@
 package com.hmdp.service;
 
 import com.baomidou.mybatisplus.extension.service.IService;
-import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 
 /**
@@ -14,5 +13,10 @@ import com.hmdp.entity.ShopType;
  */
 public interface IShopTypeService extends IService<ShopType> {
 
-    Result queryTypeList();
+    /**
+     * 查询全部店铺类型的JSON，缓存命中时不创建ShopType对象
+     *
+     * @return null代表没有店铺类型
+     */
+    byte[] queryTypeListJson();
 }
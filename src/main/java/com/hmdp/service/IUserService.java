@@ -20,4 +20,13 @@ public interface IUserService extends IService<User> {
     Result sendCode(String phone, HttpSession session);
 
     Result login(LoginFormDTO loginForm, HttpSession session);
+
+    Result sign();
+
+    Result signCount();
+
+    /**
+     * @param month yyyyMM，为空时查询本月
+     */
+    Result signStats(String month);
 }
@@ -4,6 +4,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.baomidou.mybatisplus.extension.service.IService;
 
+import java.util.List;
+
 /**
  * <p>
  *  服务类
@@ -18,6 +20,15 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     Result seckillVoucher1(Long voucherId);
 
-    void createVoucherOrder(VoucherOrder voucherOrder);
+    /**
+     * @return 订单已落库（包括之前已经存在）返回true，库存不足返回false
+     */
+    boolean createVoucherOrder(VoucherOrder voucherOrder);
+
+    /**
+     * @return 库存不足没有落库的订单，对应的消息不能ACK
+     */
+    List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders);
+
     Result createVoucherOrder1(Long voucherId);
 }
@@ -1,29 +1,60 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.thread.NamedThreadFactory;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.ScrollResult;
 import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.Blog;
+import com.hmdp.entity.Follow;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.BlogMapper;
 import com.hmdp.service.IBlogService;
+import com.hmdp.service.IFollowService;
 import com.hmdp.service.IUserService;
+import com.hmdp.utils.CacheBloomFilter;
+import com.hmdp.utils.CacheClient;
 import com.hmdp.utils.SystemConstants;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
 import org.springframework.stereotype.Service;
 import org.springframework.util.CollectionUtils;
 import org.springframework.util.ObjectUtils;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_BLOG_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_USER_TTL;
+import static com.hmdp.utils.RedisConstants.FEED_BIG_AUTHOR_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_KEY;
+import static com.hmdp.utils.RedisConstants.FEED_OUTBOX_KEY;
 
 /**
  * <p>
@@ -33,6 +64,7 @@ import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IBlogService {
 
@@ -42,6 +74,322 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private IFollowService followService;
+
+    /**
+     * 每个用户收件箱最多保留的博文数，超出后删除最旧的
+     */
+    @Value("${feed.inbox-max-size:1000}")
+    private int inboxMaxSize;
+
+    /**
+     * 推送时每批读取粉丝和pipeline写入的条数
+     */
+    @Value("${feed.push-batch-size:500}")
+    private int pushBatchSize;
+
+    @Value("${feed.push-threads:2}")
+    private int pushThreads;
+
+    /**
+     * 混合模式：粉丝数达到阈值的作者不推送，写入发件箱，粉丝读取时合并
+     */
+    @Value("${feed.hybrid.enabled:true}")
+    private boolean hybridEnabled;
+
+    @Value("${feed.hybrid.big-author-followers:10000}")
+    private long bigAuthorFollowers;
+
+    /**
+     * 每个大V发件箱最多保留的博文数
+     */
+    @Value("${feed.hybrid.outbox-max-size:1000}")
+    private int outboxMaxSize;
+
+    /**
+     * 合并结果的缓存时间（秒）
+     */
+    @Value("${feed.hybrid.merge-cache-seconds:5}")
+    private long mergeCacheSeconds;
+
+    /**
+     * 用户id:max:offset -> 合并后的博文id，第一页的max为空
+     */
+    private Cache<String, ScrollResult> mergedFeedCache;
+
+    /**
+     * 推送博文到粉丝收件箱的线程池，队列满时由发布博文的线程自己推送
+     */
+    private ThreadPoolExecutor feedPushExecutor;
+
+    @PostConstruct
+    private void init() {
+        // 博文id布隆过滤器，启动后从tb_blog全量加载
+        cacheBloomFilter.register(CACHE_BLOG_KEY, () -> query().select("id").list().stream().map(Blog::getId).collect(Collectors.toList()));
+        feedPushExecutor = new ThreadPoolExecutor(pushThreads, pushThreads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1000), new NamedThreadFactory("feed-push-", true),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        mergedFeedCache = Caffeine.newBuilder()
+                .maximumSize(10000)
+                .expireAfterWrite(mergeCacheSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @PreDestroy
+    private void destroy() {
+        feedPushExecutor.shutdown();
+    }
+
+    @Override
+    public Result saveBlog(Blog blog) {
+        // 1.保存探店博文
+        blog.setUserId(UserHolder.getUser().getId());
+        save(blog);
+        // 2.加入布隆过滤器
+        cacheBloomFilter.add(CACHE_BLOG_KEY, blog.getId());
+        // 3.异步推送到粉丝的收件箱，粉丝多的作者写入发件箱
+        long timestamp = System.currentTimeMillis();
+        feedPushExecutor.execute(() -> publish(blog.getUserId(), blog.getId(), timestamp));
+        return Result.ok(blog.getId());
+    }
+
+    private void publish(Long authorId, Long blogId, long timestamp) {
+        if (hybridEnabled && followService.query().eq("follow_user_id", authorId).count() >= bigAuthorFollowers) {
+            pushToOutbox(authorId, blogId, timestamp);
+        } else {
+            pushToFollowers(authorId, blogId, timestamp);
+        }
+    }
+
+    /**
+     * ZADD feed:outbox:{作者id} timestamp blogId，粉丝读取时再合并，并把作者加入大V集合
+     * <p>
+     * 作者之后粉丝减少也不会移出大V集合，否则发件箱中没有推送过的博文就读不到了
+     */
+    private void pushToOutbox(Long authorId, Long blogId, long timestamp) {
+        String key = FEED_OUTBOX_KEY + authorId;
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stringConnection.zAdd(key, timestamp, blogId.toString());
+            stringConnection.zRemRange(key, 0, -outboxMaxSize - 1);
+            stringConnection.sAdd(FEED_BIG_AUTHOR_KEY, authorId.toString());
+            return null;
+        });
+    }
+
+    /**
+     * 按id游标分批读取粉丝，每批用pipeline写入 ZADD feed:{粉丝id} timestamp blogId，
+     * 并用 ZREMRANGEBYRANK 只保留最新的 inboxMaxSize 条
+     */
+    private void pushToFollowers(Long authorId, Long blogId, long timestamp) {
+        String member = blogId.toString();
+        long lastId = 0;
+        long pushed = 0;
+        try {
+            while (true) {
+                List<Follow> follows = followService.query()
+                        .select("id", "user_id")
+                        .eq("follow_user_id", authorId)
+                        .gt("id", lastId)
+                        .orderByAsc("id")
+                        .last("limit " + pushBatchSize)
+                        .list();
+                if (follows.isEmpty()) {
+                    break;
+                }
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                    for (Follow follow : follows) {
+                        String key = FEED_KEY + follow.getUserId();
+                        stringConnection.zAdd(key, timestamp, member);
+                        stringConnection.zRemRange(key, 0, -inboxMaxSize - 1);
+                    }
+                    return null;
+                });
+                pushed += follows.size();
+                lastId = follows.get(follows.size() - 1).getId();
+                if (follows.size() < pushBatchSize) {
+                    break;
+                }
+            }
+        } catch (Exception e) {
+            log.error("推送博文到粉丝收件箱失败，博文id：{}，已推送{}个粉丝", blogId, pushed, e);
+        }
+    }
+
+    @Override
+    public Result queryBlogOfFollow(Long max, Integer offset) {
+        // 1.查询博文id，混合模式合并收件箱和关注的大V的发件箱，结果短暂缓存
+        Long userId = UserHolder.getUser().getId();
+        ScrollResult feed = hybridEnabled
+                ? mergedFeedCache.get(userId + ":" + (max == null ? "" : max) + ":" + offset,
+                        k -> queryMergedFeed(userId, max == null ? System.currentTimeMillis() : max, offset))
+                : queryInbox(userId, max == null ? System.currentTimeMillis() : max, offset);
+        // 2.按顺序查询博文，已删除的博文跳过
+        List<Long> ids = feed.getList().stream().map(id -> (Long) id).collect(Collectors.toList());
+        List<Blog> records = new ArrayList<>(ids.size());
+        if (!ids.isEmpty()) {
+            Map<Long, Blog> blogs = listByIds(ids).stream().collect(Collectors.toMap(Blog::getId, Function.identity()));
+            ids.stream().map(blogs::get).filter(Objects::nonNull).forEach(records::add);
+            fillBlogUsers(records);
+            records.forEach(this::isBlogLiked);
+        }
+        ScrollResult r = new ScrollResult();
+        r.setList(records);
+        r.setMinTime(feed.getMinTime());
+        r.setOffset(feed.getOffset());
+        return Result.ok(r);
+    }
+
+    /**
+     * ZREVRANGEBYSCORE feed:{userId} max 0 WITHSCORES LIMIT offset count
+     */
+    private ScrollResult queryInbox(Long userId, long max, int offset) {
+        Set<ZSetOperations.TypedTuple<String>> tuples = stringRedisTemplate.opsForZSet()
+                .reverseRangeByScoreWithScores(FEED_KEY + userId, 0, max, offset, SystemConstants.MAX_PAGE_SIZE);
+        return toScrollResult(tuples == null ? new ArrayList<>() : new ArrayList<>(tuples), max, offset);
+    }
+
+    /**
+     * 收件箱和关注的大V的发件箱都按时间倒序，每个取出前 offset + count 条后多路归并：
+     * 跳过时间戳等于max的前offset条，再取count条。时间戳相同时按博文id的字典序倒序，保证每次归并的顺序一致
+     */
+    @SuppressWarnings("unchecked")
+    private ScrollResult queryMergedFeed(Long userId, long max, int offset) {
+        // 1.收件箱和关注的大V的发件箱
+        List<String> keys = new ArrayList<>();
+        keys.add(FEED_KEY + userId);
+        followedBigAuthors(userId).forEach(authorId -> keys.add(FEED_OUTBOX_KEY + authorId));
+        int count = SystemConstants.MAX_PAGE_SIZE;
+        List<Object> sources = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            keys.forEach(key -> stringConnection.zRevRangeByScoreWithScores(key, 0, max, 0, offset + count));
+            return null;
+        });
+        // 2.多路归并，每个来源当前最新的一条放入堆中
+        PriorityQueue<FeedCursor> heap = new PriorityQueue<>(keys.size());
+        for (Object source : sources) {
+            FeedCursor cursor = new FeedCursor(((Set<ZSetOperations.TypedTuple<String>>) source).iterator());
+            if (cursor.next()) {
+                heap.add(cursor);
+            }
+        }
+        List<ZSetOperations.TypedTuple<String>> page = new ArrayList<>(count);
+        Set<String> seen = new HashSet<>();
+        int skipped = 0;
+        while (!heap.isEmpty() && page.size() < count) {
+            FeedCursor cursor = heap.poll();
+            ZSetOperations.TypedTuple<String> tuple = cursor.current;
+            if (cursor.next()) {
+                heap.add(cursor);
+            }
+            if (!seen.add(tuple.getValue())) {
+                continue;
+            }
+            // 上一页已经返回了时间戳等于max的前offset条
+            if (skipped < offset && tuple.getScore().longValue() == max) {
+                skipped++;
+                continue;
+            }
+            page.add(tuple);
+        }
+        return toScrollResult(page, max, offset);
+    }
+
+    /**
+     * 关注的人中在大V集合里的作者
+     */
+    private List<Long> followedBigAuthors(Long userId) {
+        List<Long> followings = followService.query()
+                .select("follow_user_id")
+                .eq("user_id", userId)
+                .list()
+                .stream().map(Follow::getFollowUserId).collect(Collectors.toList());
+        if (followings.isEmpty()) {
+            return followings;
+        }
+        List<Object> members = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            followings.forEach(id -> stringConnection.sIsMember(FEED_BIG_AUTHOR_KEY, id.toString()));
+            return null;
+        });
+        List<Long> bigAuthors = new ArrayList<>();
+        for (int i = 0; i < followings.size(); i++) {
+            if (Boolean.TRUE.equals(members.get(i))) {
+                bigAuthors.add(followings.get(i));
+            }
+        }
+        return bigAuthors;
+    }
+
+    /**
+     * 解析博文id、最小时间戳，以及最小时间戳出现的次数作为下一页的偏移量
+     */
+    private static ScrollResult toScrollResult(List<ZSetOperations.TypedTuple<String>> tuples, long max, int offset) {
+        ScrollResult r = new ScrollResult();
+        if (tuples.isEmpty()) {
+            r.setList(new ArrayList<>());
+            r.setMinTime(max);
+            r.setOffset(offset);
+            return r;
+        }
+        List<Long> ids = new ArrayList<>(tuples.size());
+        long minTime = 0;
+        int os = 1;
+        for (ZSetOperations.TypedTuple<String> tuple : tuples) {
+            ids.add(Long.valueOf(tuple.getValue()));
+            long time = tuple.getScore().longValue();
+            if (time == minTime) {
+                os++;
+            } else {
+                minTime = time;
+                os = 1;
+            }
+        }
+        // 整页的时间戳都与上一页的最小时间戳相同，偏移量要加上上一页的偏移量
+        if (minTime == max) {
+            os += offset;
+        }
+        r.setList(ids);
+        r.setMinTime(minTime);
+        r.setOffset(os);
+        return r;
+    }
+
+    /**
+     * 多路归并中一个来源的读取位置，按时间戳倒序、时间戳相同按博文id的字典序倒序
+     */
+    private static final class FeedCursor implements Comparable<FeedCursor> {
+        private final Iterator<ZSetOperations.TypedTuple<String>> iterator;
+        private ZSetOperations.TypedTuple<String> current;
+
+        FeedCursor(Iterator<ZSetOperations.TypedTuple<String>> iterator) {
+            this.iterator = iterator;
+        }
+
+        boolean next() {
+            current = iterator.hasNext() ? iterator.next() : null;
+            return current != null;
+        }
+
+        @Override
+        public int compareTo(FeedCursor other) {
+            int result = Double.compare(other.current.getScore(), current.getScore());
+            if (result != 0) {
+                return result;
+            }
+            // 与Redis相同分数按成员字典序倒序的规则一致，每个来源内部的顺序才能和堆的顺序相同
+            return other.current.getValue().compareTo(current.getValue());
+        }
+    }
+
     @Override
     public Result queryHotBlog(Integer current) {
         // 根据用户查询
@@ -50,14 +398,31 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
                 .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE));
         // 获取当前页数据
         List<Blog> records = page.getRecords();
-        // 查询用户
-        records.forEach(record -> {
-            queryBlogUser(record);
-            isBlogLiked(record);
-        });
+        // 批量查询用户
+        fillBlogUsers(records);
+        records.forEach(this::isBlogLiked);
         return Result.ok(records);
     }
 
+    /**
+     * 批量查询博文的作者
+     */
+    private void fillBlogUsers(List<Blog> records) {
+        List<Long> userIds = records.stream().map(Blog::getUserId).collect(Collectors.toList());
+        List<UserDTO> users = cacheClient.queryBatch(CACHE_USER_KEY, userIds, UserDTO.class,
+                ids -> userService.listByIds(ids).stream()
+                        .collect(Collectors.toMap(User::getId, user -> BeanUtil.copyProperties(user, UserDTO.class))),
+                CACHE_USER_TTL, TimeUnit.MINUTES);
+        for (int i = 0; i < records.size(); i++) {
+            Blog record = records.get(i);
+            UserDTO user = users.get(i);
+            if (user != null) {
+                record.setName(user.getNickName());
+                record.setIcon(user.getIcon());
+            }
+        }
+    }
+
     private void queryBlogUser(Blog blog) {
         Long userId = blog.getUserId();
         User user = userService.getById(userId);
@@ -67,6 +432,10 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
 
     @Override
     public Result queryBlogById(Long id) {
+        // 0.布隆过滤器判断id一定不存在，直接返回
+        if (!cacheBloomFilter.mightContain(CACHE_BLOG_KEY, id)) {
+            return Result.fail("笔记不存在！");
+        }
         // 1.查询blog
         Blog blog = getById(id);
         if (blog == null) {
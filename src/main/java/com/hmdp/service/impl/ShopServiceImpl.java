@@ -1,25 +1,47 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.util.BooleanUtil;
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import cn.hutool.crypto.digest.DigestUtil;
+import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.Shop;
 import com.hmdp.mapper.ShopMapper;
 import com.hmdp.service.IShopService;
+import com.hmdp.utils.CacheBloomFilter;
 import com.hmdp.utils.CacheClient;
-import com.hmdp.utils.RedisData;
+import com.hmdp.utils.NearbyShopIndex;
+import com.hmdp.utils.ShopSpatialIndex;
+import com.hmdp.utils.SystemConstants;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.geo.Circle;
+import org.springframework.data.geo.Distance;
+import org.springframework.data.geo.GeoResult;
+import org.springframework.data.geo.GeoResults;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.util.ObjectUtils;
 
+import javax.annotation.PostConstruct;
 import javax.annotation.Resource;
-import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -31,6 +53,7 @@ import static com.hmdp.utils.RedisConstants.*;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IShopService {
 
@@ -38,13 +61,85 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
     private StringRedisTemplate stringRedisTemplate;
     @Resource
     private CacheClient cacheClient;
+    @Resource
+    private CacheBloomFilter cacheBloomFilter;
+    @Resource
+    private NearbyShopIndex nearbyShopIndex;
+
+    /**
+     * 店铺本地缓存的最大条数
+     */
+    @Value("${cache.local.shop.maximum-size:10000}")
+    private long localCacheMaximumSize;
+
+    /**
+     * 店铺本地缓存的过期时间（秒）
+     */
+    @Value("${cache.local.shop.ttl-seconds:5}")
+    private long localCacheTtl;
+
+    /**
+     * 店铺缓存过期时间的随机延长比例
+     */
+    @Value("${cache.ttl-jitter.shop:0.2}")
+    private double ttlJitter;
+
+    /**
+     * 店铺按桶存储在hash中，节省Redis内存
+     */
+    @Value("${cache.bucket.shop.enabled:false}")
+    private boolean bucketEnabled;
+
+    /**
+     * 每个桶的店铺数，不超过Redis的 hash-max-listpack-entries
+     */
+    @Value("${cache.bucket.shop.size:100}")
+    private int bucketSize;
+
+    /**
+     * 附近店铺的搜索半径（米）
+     */
+    @Value("${shop.geo.radius-meters:5000}")
+    private double geoRadius;
+
+    /**
+     * 按名称搜索时，超过该长度的关键字不缓存分页
+     */
+    @Value("${shop.page.name.max-length:32}")
+    private int nameMaxLength;
+
+    /**
+     * 按名称搜索时，关键字在本节点被搜索到该次数后才缓存分页，只搜索过一次的关键字不占用Redis
+     */
+    @Value("${shop.page.name.admit-hits:2}")
+    private int nameAdmitHits;
+
+    /**
+     * 关键字在分页缓存有效期内的搜索次数
+     */
+    private Cache<String, AtomicInteger> nameHits;
+
+    @PostConstruct
+    private void init() {
+        nameHits = Caffeine.newBuilder()
+                .maximumSize(localCacheMaximumSize)
+                .expireAfterWrite(CACHE_SHOP_PAGE_TTL, TimeUnit.MINUTES)
+                .build();
+        cacheClient.enableLocalCache(CACHE_SHOP_KEY, localCacheMaximumSize, localCacheTtl, TimeUnit.SECONDS);
+        cacheClient.setTtlJitter(CACHE_SHOP_KEY, ttlJitter);
+        if (bucketEnabled) {
+            cacheClient.enableBucketStorage(CACHE_SHOP_KEY, bucketSize, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        }
+        // 店铺id布隆过滤器，启动后从tb_shop全量加载
+        cacheBloomFilter.register(CACHE_SHOP_KEY, () -> query().select("id").list().stream().map(Shop::getId).collect(Collectors.toList()));
+    }
 
     @Override
     public Result queryById(Long id) {
-        //缓存穿透
-        Shop shop = cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MILLISECONDS);
-        //逻辑过期解决缓存击穿
-        Shop shop1 = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MILLISECONDS);
+        //缓存穿透，快过期时按概率提前重建
+        Shop shop = cacheClient.queryWithEarlyExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+        //逻辑过期解决缓存击穿，与缓存穿透使用同一个key，二者选其一
+        //Shop shop = cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MILLISECONDS);
 
 
         if (shop == null) {
@@ -54,65 +149,27 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         return Result.ok(shop);
     }
 
+    @Override
+    public byte[] queryJsonById(Long id) {
+        return cacheClient.queryJson(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public List<Shop> queryByIds(List<Long> ids) {
+        // 一次MGET查缓存，未命中的一次listByIds查库，结果与ids顺序一致
+        return cacheClient.queryBatch(CACHE_SHOP_KEY, ids, Shop.class,
+                missIds -> listByIds(missIds).stream().collect(Collectors.toMap(Shop::getId, Function.identity())),
+                CACHE_SHOP_TTL, TimeUnit.MINUTES);
+    }
+
     /**
-     * 互斥锁（缓存雪崩）
+     * 互斥锁（缓存击穿），并发未命中由CacheClient合并为一次查库，没抢到锁的请求等待重建完成通知
      *
      * @param id
      * @return
      */
     public Shop queryWithMutex(Long id) {
-        String key = CACHE_SHOP_KEY.concat(String.valueOf(id));
-        // 1.从redis中去查
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判空(有商铺数据的时候才是true，""就是false)
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            Result.ok(JSONUtil.toBean(shopJson, Shop.class));
-        }
-        // 命中的是否是空值（此时如果是""）
-        if (shopJson != null) {
-            // 返回错误信息
-            return null;
-        }
-        // 4.实现缓存重建
-        // 4.1 获取互斥锁
-        Shop shop = null;
-        try {
-            boolean isLock = this.tryLock(LOCK_SHOP_KEY.concat(String.valueOf(id)));
-            // 4.2 判断获取是否成功
-            if (!isLock) {
-                // 4.3 失败，则休眠并重试
-                Thread.sleep(50);
-                return this.queryWithMutex(id);
-            }
-            // 4.4 获取锁成功再次检查redis缓存是否存在，做doubleCheck 如果存在则无需重建缓存
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            if (StrUtil.isNotBlank(shopJson)) {
-                // 3.存在，直接返回
-                return JSONUtil.toBean(shopJson, Shop.class);
-            }
-            // 命中的是否是空值（此时如果是""）
-            if (shopJson != null) {
-                // 返回错误信息
-                return null;
-            }
-            // 4.5 成功，根据id查询数据库
-            shop = this.getById(id);
-            if (ObjectUtils.isEmpty(shop)) {
-                // 将空值写入redis
-                stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-                return null;
-            }
-            // 5.存在存入redis
-            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-            // 6.释放互斥锁
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        } finally {
-            this.unLock(LOCK_SHOP_KEY);
-        }
-        // 根据情况返回 shop
-        return shop;
+        return cacheClient.queryWithMutex(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
     /**
@@ -122,30 +179,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @return
      */
     public Shop queryWithPassThrough(Long id) {
-        String key = CACHE_SHOP_KEY.concat(String.valueOf(id));
-        // 1.从redis中去查
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判空(有商铺数据的时候才是true，""就是false)
-        if (StrUtil.isNotBlank(shopJson)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(shopJson, Shop.class);
-        }
-        // 命中的是否是空值（此时如果是""）
-        if (shopJson != null) {
-            // 返回错误信息
-            return null;
-        }
-        // 4.不存在查库
-        Shop shop = this.getById(id);
-        if (ObjectUtils.isEmpty(shop)) {
-            // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-            return null;
-        }
-        // 5.存在存入redis
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop), CACHE_SHOP_TTL, TimeUnit.MINUTES);
-        // 根据情况返回 shop
-        return shop;
+        return cacheClient.queryWithPassThrough(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.MINUTES);
     }
 
 
@@ -156,60 +190,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
      * @return
      */
     public Shop queryWithLogicalExpire(Long id) {
-        String key = CACHE_SHOP_KEY.concat(String.valueOf(id));
-        // 1.从redis中去查
-        String shopJson = stringRedisTemplate.opsForValue().get(key);
-        // 2.判空(有商铺数据的时候才是true，""就是false)
-        if (StrUtil.isBlank(shopJson)) {
-            // 不存在直接返回null
-            return null;
-        }
-        // 3.命中反序列化对象
-        RedisData redisData = JSONUtil.toBean(shopJson, RedisData.class);
-        Shop shop = JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 4.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 4.1 未过期 直接返回
-            return shop;
-        }
-        // 4.2 已过期 缓存重建
-        boolean isLock = tryLock(LOCK_SHOP_KEY + id);
-        // 5 缓存重建
-        // 5.1 获取互斥锁
-        // 5.2 判断是否成功
-        if (isLock) {
-            shopJson = stringRedisTemplate.opsForValue().get(key);
-            if (StrUtil.isNotBlank(shopJson)) {
-                // 3.存在，直接返回
-                redisData = JSONUtil.toBean(shopJson, RedisData.class);
-                return JSONUtil.toBean((JSONObject) redisData.getData(), Shop.class);
-            }
-            // 5.3 成功，开启独立线程实现缓存重建
-            CompletableFuture.runAsync(() -> {
-                try {
-                    // 重建缓存
-                    this.saveShopToRedis(id, CACHE_SHOP_TTL);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
-                } finally {
-                    //释放锁
-                    unLock(key);
-                }
-            });
-        }
-        // 5.4 返回过期的信息
-        return shop;
-    }
-
-
-    private boolean tryLock(String key) {
-        Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
-        return BooleanUtil.isTrue(flag);
-    }
-
-    private void unLock(String key) {
-        Boolean flag = stringRedisTemplate.delete(key);
+        return cacheClient.queryWithLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, this::getById, CACHE_SHOP_TTL, TimeUnit.SECONDS);
     }
 
 
@@ -217,11 +198,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         // 1.查询店铺数据
         Shop shop = this.getById(id);
         // 2.封装逻辑过期 写入redis
-        RedisData redisData = new RedisData();
-        redisData.setData(shop);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(expireTime));
-        // 3.写入redis
-        stringRedisTemplate.opsForValue().set(CACHE_SHOP_KEY + id, JSONUtil.toJsonStr(redisData));
+        cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shop, expireTime, TimeUnit.SECONDS);
     }
 
     @Override
@@ -231,9 +208,190 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
         if (id == null) {
             return Result.fail("Shop id is null");
         }
-        CompletableFuture.runAsync(() -> this.updateById(shop));
-        String key = CACHE_SHOP_KEY.concat(String.valueOf(id));
-        stringRedisTemplate.delete(key);
+        // 类型可能被修改，新旧类型的分页缓存和GEO都要更新
+        Shop old = getById(id);
+        CompletableFuture.runAsync(() -> this.updateById(shop))
+                .thenRun(() -> {
+                    // 数据库写入之后再删除Redis缓存，并通知所有节点删除本地缓存，
+                    // 否则写入之前的读请求会把旧数据重新写回缓存
+                    cacheClient.delete(CACHE_SHOP_KEY.concat(String.valueOf(id)));
+                    if (shop.getTypeId() != null) {
+                        bumpPageVersion("type:" + shop.getTypeId());
+                    }
+                    if (old != null && old.getTypeId() != null && shop.getTypeId() != null
+                            && !old.getTypeId().equals(shop.getTypeId())) {
+                        bumpPageVersion("type:" + old.getTypeId());
+                        stringRedisTemplate.opsForGeo().remove(SHOP_GEO_KEY + old.getTypeId(), id.toString());
+                    }
+                    bumpPageVersion("name");
+                    addGeo(getById(id));
+                    nearbyShopIndex.publish(id);
+                })
+                .whenComplete((v, e) -> {
+                    if (e != null) {
+                        log.error("更新店铺失败，店铺id：{}", id, e);
+                    }
+                });
         return Result.ok();
     }
+
+    @Override
+    public void saveShop(Shop shop) {
+        // 写入数据库
+        save(shop);
+        // 加入布隆过滤器
+        cacheBloomFilter.add(CACHE_SHOP_KEY, shop.getId());
+        // 新店铺会出现在所属类型和名称搜索的分页中
+        bumpPageVersion("type:" + shop.getTypeId());
+        bumpPageVersion("name");
+        addGeo(shop);
+        nearbyShopIndex.publish(shop.getId());
+    }
+
+    /**
+     * 店铺坐标写入 shop:geo:{typeId}
+     */
+    private void addGeo(Shop shop) {
+        if (shop == null || shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return;
+        }
+        stringRedisTemplate.opsForGeo().add(SHOP_GEO_KEY + shop.getTypeId(),
+                new Point(shop.getX(), shop.getY()), shop.getId().toString());
+    }
+
+    @Override
+    public List<Shop> queryByType(Integer typeId, Integer current, Double x, Double y) {
+        if (x == null || y == null) {
+            return queryByType(typeId, current);
+        }
+        // 1.按距离由近到远查询到当前页的最后一条，带上距离
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        GeoResults<RedisGeoCommands.GeoLocation<String>> results = stringRedisTemplate.opsForGeo().radius(
+                SHOP_GEO_KEY + typeId,
+                new Circle(new Point(x, y), new Distance(geoRadius, RedisGeoCommands.DistanceUnit.METERS)),
+                RedisGeoCommands.GeoRadiusCommandArgs.newGeoRadiusArgs().includeDistance().sortAscending().limit(end));
+        if (results == null || results.getContent().size() <= from) {
+            return Collections.emptyList();
+        }
+        // 2.跳过前面的页
+        List<GeoResult<RedisGeoCommands.GeoLocation<String>>> page =
+                results.getContent().subList(from, results.getContent().size());
+        List<Long> ids = new ArrayList<>(page.size());
+        Map<Long, Double> distances = new HashMap<>(page.size());
+        for (GeoResult<RedisGeoCommands.GeoLocation<String>> result : page) {
+            Long id = Long.valueOf(result.getContent().getName());
+            ids.add(id);
+            distances.put(id, result.getDistance().getValue());
+        }
+        // 3.批量从店铺缓存中查询
+        return resolveWithDistance(ids, distances);
+    }
+
+    @Override
+    public List<Shop> queryNearby(Double x, Double y, ShopSpatialIndex.Filter filter, Integer current) {
+        // 1.内存索引中按条件过滤，查询到当前页的最后一条
+        int from = (current - 1) * SystemConstants.DEFAULT_PAGE_SIZE;
+        int end = current * SystemConstants.DEFAULT_PAGE_SIZE;
+        List<ShopSpatialIndex.Nearby> nearby = nearbyShopIndex.nearest(x, y, end, filter, geoRadius);
+        if (nearby.size() <= from) {
+            return Collections.emptyList();
+        }
+        // 2.跳过前面的页
+        List<Long> ids = new ArrayList<>(end - from);
+        Map<Long, Double> distances = new HashMap<>(end - from);
+        for (ShopSpatialIndex.Nearby shop : nearby.subList(from, nearby.size())) {
+            ids.add(shop.getId());
+            distances.put(shop.getId(), shop.getDistance());
+        }
+        // 3.批量从店铺缓存中查询
+        return resolveWithDistance(ids, distances);
+    }
+
+    /**
+     * 批量从店铺缓存中查询，复制后再设置距离，不修改本地缓存中的对象
+     */
+    private List<Shop> resolveWithDistance(List<Long> ids, Map<Long, Double> distances) {
+        List<Shop> shops = new ArrayList<>(ids.size());
+        for (Shop shop : resolvePage(ids)) {
+            Shop copy = BeanUtil.copyProperties(shop, Shop.class);
+            copy.setDistance(distances.get(shop.getId()));
+            shops.add(copy);
+        }
+        return shops;
+    }
+
+    private List<Shop> queryByType(Integer typeId, Integer current) {
+        String scope = "type:" + typeId;
+        String key = CACHE_SHOP_PAGE_KEY + scope + ":v" + pageVersion(scope) + ":" + current;
+        List<Long> ids = queryPageIds(key, () -> query()
+                .select("id")
+                .eq("type_id", typeId)
+                .page(new Page<>(current, SystemConstants.DEFAULT_PAGE_SIZE, false))
+                .getRecords());
+        return resolvePage(ids);
+    }
+
+    @Override
+    public List<Shop> queryByName(String name, Integer current) {
+        String keyword = StrUtil.nullToEmpty(name);
+        Supplier<List<Shop>> loader = () -> query()
+                .select("id")
+                .like(StrUtil.isNotBlank(keyword), "name", keyword)
+                .page(new Page<>(current, SystemConstants.MAX_PAGE_SIZE, false))
+                .getRecords();
+        if (StrUtil.isBlank(keyword) || keyword.length() > nameMaxLength) {
+            // 空关键字和过长的关键字不缓存，直接查库
+            return resolvePage(loader.get().stream().map(Shop::getId).collect(Collectors.toList()));
+        }
+        // 关键字取md5，key的长度固定，也不会与版本号、页码混淆
+        String key = CACHE_SHOP_PAGE_KEY + "name:v" + pageVersion("name") + ":" + current + ":" + DigestUtil.md5Hex(keyword);
+        // 其它节点已经缓存的分页照常读取，本节点搜索次数不够时只是不写入
+        boolean admitted = nameHits.get(keyword, k -> new AtomicInteger()).incrementAndGet() >= nameAdmitHits;
+        return resolvePage(queryPageIds(key, loader, admitted));
+    }
+
+    /**
+     * 分页缓存中只保存逗号分隔的店铺id，未命中时查库，不查询总数
+     */
+    private List<Long> queryPageIds(String key, Supplier<List<Shop>> loader) {
+        return queryPageIds(key, loader, true);
+    }
+
+    /**
+     * @param store 未命中时是否写入缓存
+     */
+    private List<Long> queryPageIds(String key, Supplier<List<Shop>> loader, boolean store) {
+        String cached = stringRedisTemplate.opsForValue().get(key);
+        if (cached != null) {
+            return cached.isEmpty() ? Collections.emptyList()
+                    : StrUtil.split(cached, ',').stream().map(Long::valueOf).collect(Collectors.toList());
+        }
+        List<Long> ids = loader.get().stream().map(Shop::getId).collect(Collectors.toList());
+        if (store) {
+            stringRedisTemplate.opsForValue().set(key, StrUtil.join(",", ids), CACHE_SHOP_PAGE_TTL, TimeUnit.MINUTES);
+        }
+        return ids;
+    }
+
+    /**
+     * 通过店铺缓存批量查询店铺，去掉已经删除的店铺
+     */
+    private List<Shop> resolvePage(List<Long> ids) {
+        List<Shop> shops = queryByIds(ids);
+        shops.removeIf(Objects::isNull);
+        return shops;
+    }
+
+    /**
+     * 分页缓存的版本号，写入店铺后版本号加一，旧版本的分页不会再被访问，等待过期
+     */
+    private String pageVersion(String scope) {
+        String version = stringRedisTemplate.opsForValue().get(CACHE_SHOP_PAGE_VERSION_KEY + scope);
+        return version == null ? "0" : version;
+    }
+
+    private void bumpPageVersion(String scope) {
+        stringRedisTemplate.opsForValue().increment(CACHE_SHOP_PAGE_VERSION_KEY + scope);
+    }
 }
@@ -1,19 +1,18 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
-import com.hmdp.dto.Result;
 import com.hmdp.entity.ShopType;
 import com.hmdp.mapper.ShopTypeMapper;
 import com.hmdp.service.IShopTypeService;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import com.hmdp.utils.CacheClient;
 import org.springframework.stereotype.Service;
-import org.springframework.util.CollectionUtils;
 
 import javax.annotation.Resource;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
+import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_TTL;
 
 /**
  * <p>
@@ -27,21 +26,12 @@ import static com.hmdp.utils.RedisConstants.CACHE_SHOP_TYPE_KEY;
 public class ShopTypeServiceImpl extends ServiceImpl<ShopTypeMapper, ShopType> implements IShopTypeService {
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private CacheClient cacheClient;
 
     @Override
-    public Result queryTypeList() {
-
-        List<String> shopTypeList = stringRedisTemplate.opsForList().range(CACHE_SHOP_TYPE_KEY, 0, -1);
-        List<ShopType> typeList = null;
-        if (!CollectionUtils.isEmpty(shopTypeList)) {
-            for (String shopType : shopTypeList) {
-                typeList.add(JSONUtil.toBean(shopType, ShopType.class));
-            }
-            return Result.ok(typeList);
-        }
-        typeList = this.query().orderByAsc("sort").list();
-        stringRedisTemplate.opsForList().leftPushAll(CACHE_SHOP_TYPE_KEY, JSONUtil.toJsonStr(typeList));
-        return Result.ok(typeList);
+    public byte[] queryTypeListJson() {
+        // 全部店铺类型放在同一个key中，命中时直接返回JSON
+        return cacheClient.queryJson(CACHE_SHOP_TYPE_KEY, "all", List.class,
+                id -> query().orderByAsc("sort").list(), CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES);
     }
 }
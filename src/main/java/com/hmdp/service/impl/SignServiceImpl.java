@@ -0,0 +1,20 @@
+package com.hmdp.service.impl;
+
+import com.hmdp.entity.Sign;
+import com.hmdp.mapper.SignMapper;
+import com.hmdp.service.ISignService;
+import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
+import org.springframework.stereotype.Service;
+
+/**
+ * <p>
+ *  服务实现类
+ * </p>
+ *
+ * @author 虎哥
+ * @since 2021-12-22
+ */
+@Service
+public class SignServiceImpl extends ServiceImpl<SignMapper, Sign> implements ISignService {
+
+}
@@ -7,19 +7,30 @@ import cn.hutool.core.util.RandomUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.SignDTO;
 import com.hmdp.dto.UserDTO;
+import com.hmdp.entity.Sign;
 import com.hmdp.entity.User;
 import com.hmdp.mapper.UserMapper;
+import com.hmdp.service.ISignService;
 import com.hmdp.service.IUserService;
 import com.hmdp.utils.RegexUtils;
+import com.hmdp.utils.SignBits;
+import com.hmdp.utils.UserHolder;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.BitFieldSubCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Service;
 import org.springframework.util.ObjectUtils;
 
 import javax.annotation.Resource;
 import javax.servlet.http.HttpSession;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
@@ -38,9 +49,14 @@ import static com.hmdp.utils.SystemConstants.USER_NICK_NAME_PREFIX;
 @Service
 public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IUserService {
 
+    private static final DateTimeFormatter SIGN_MONTH = DateTimeFormatter.ofPattern("yyyyMM");
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    @Resource
+    private ISignService signService;
+
     @Override
     public Result sendCode(String phone, HttpSession session) {
         // 1.校验手机号
@@ -95,6 +111,74 @@ public class UserServiceImpl extends ServiceImpl<UserMapper, User> implements IU
         return Result.ok(token);
     }
 
+    @Override
+    public Result sign() {
+        // 1.获取当前登录用户和日期
+        Long userId = UserHolder.getUser().getId();
+        LocalDate now = LocalDate.now();
+        // 2.SETBIT sign:{userId}:{yyyyMM} {day-1} 1，每个用户每月一个bitmap
+        String key = signKey(userId, YearMonth.from(now));
+        stringRedisTemplate.opsForValue().setBit(key, now.getDayOfMonth() - 1, true);
+        return Result.ok();
+    }
+
+    @Override
+    public Result signCount() {
+        LocalDate now = LocalDate.now();
+        long bits = signBits(UserHolder.getUser().getId(), YearMonth.from(now), now.getDayOfMonth());
+        return Result.ok(SignBits.streak(bits));
+    }
+
+    @Override
+    public Result signStats(String month) {
+        YearMonth yearMonth;
+        try {
+            yearMonth = month == null || month.isEmpty() ? YearMonth.now() : YearMonth.parse(month, SIGN_MONTH);
+        } catch (DateTimeParseException e) {
+            return Result.fail("月份格式错误");
+        }
+        // 本月截止今天，往月截止月末
+        LocalDate now = LocalDate.now();
+        if (yearMonth.isAfter(YearMonth.from(now))) {
+            return Result.fail("月份不能晚于本月");
+        }
+        int days = yearMonth.equals(YearMonth.from(now)) ? now.getDayOfMonth() : yearMonth.lengthOfMonth();
+        long bits = signBits(UserHolder.getUser().getId(), yearMonth, days);
+        SignDTO signDTO = new SignDTO();
+        signDTO.setMonth(yearMonth.format(SIGN_MONTH));
+        signDTO.setCount(SignBits.count(bits));
+        signDTO.setStreak(SignBits.streak(bits));
+        signDTO.setMaxStreak(SignBits.maxStreak(bits));
+        signDTO.setDays(SignBits.days(bits, days));
+        return Result.ok(signDTO);
+    }
+
+    /**
+     * 一次取出1号到days号的签到记录，最低位是days号
+     * <p>
+     * 已结束的月份归档后从 tb_sign 读取，还没有归档时仍然读取Redis
+     */
+    private long signBits(Long userId, YearMonth month, int days) {
+        if (month.isBefore(YearMonth.now())) {
+            Sign sign = signService.query()
+                    .eq("user_id", userId).eq("year", month.getYear()).eq("month", month.getMonthValue()).one();
+            if (sign != null) {
+                return SignBits.unpack(sign.getBits(), days);
+            }
+        }
+        // BITFIELD key GET u{days} 0
+        List<Long> result = stringRedisTemplate.opsForValue().bitField(signKey(userId, month),
+                BitFieldSubCommands.create().get(BitFieldSubCommands.BitFieldType.unsigned(days)).valueAt(0));
+        if (result == null || result.isEmpty() || result.get(0) == null) {
+            return 0;
+        }
+        return result.get(0);
+    }
+
+    private static String signKey(Long userId, YearMonth month) {
+        return USER_SIGN_KEY + userId + ":" + month.format(SIGN_MONTH);
+    }
+
     private User createUserWithPhone(String phone) {
         User user = new User();
         user.setPhone(phone);
@@ -1,6 +1,8 @@
 package com.hmdp.service.impl;
 
 import cn.hutool.core.bean.BeanUtil;
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
 import com.hmdp.entity.SeckillVoucher;
@@ -8,12 +10,20 @@ import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.RedisConstants;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillSoldOutRegistry;
+import com.hmdp.utils.SeckillStockShards;
 import com.hmdp.utils.UserHolder;
+import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
 import org.springframework.aop.framework.AopContext;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Range;
 import org.springframework.data.redis.connection.stream.*;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.data.redis.core.script.DefaultRedisScript;
@@ -22,14 +32,23 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.util.CollectionUtils;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 /**
  * <p>
@@ -39,6 +58,7 @@ import java.util.concurrent.Executors;
  * @author 虎哥
  * @since 2021-12-22
  */
+@Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
     @Resource
@@ -53,51 +73,133 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Resource
     private RedissonClient redissonClient;
 
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private SeckillSoldOutRegistry seckillSoldOutRegistry;
+
+    /**
+     * 每次从消息队列批量读取并落库的订单数
+     */
+    @Value("${seckill.order.batch-size:100}")
+    private int batchSize;
+
+    /**
+     * 攒批的最长等待时间（毫秒）
+     */
+    @Value("${seckill.order.max-linger-ms:50}")
+    private long maxLingerMs;
+
+    /**
+     * 每个节点的消费者线程数
+     */
+    @Value("${seckill.order.consumer-threads:4}")
+    private int consumerThreads;
+
+    /**
+     * 消息空闲超过该时间（毫秒）认为原消费者已宕机，可以被认领
+     */
+    @Value("${seckill.order.claim-min-idle-ms:60000}")
+    private long claimMinIdleMs;
+
+    /**
+     * 认领空闲消息的检查间隔（毫秒）
+     */
+    @Value("${seckill.order.claim-interval-ms:30000}")
+    private long claimIntervalMs;
+
+    /**
+     * 消息的最大投递次数，超过后转入死信队列
+     */
+    @Value("${seckill.order.max-deliveries:5}")
+    private long maxDeliveries;
+
+    @Value("${server.port:8080}")
+    private int serverPort;
+
+    private static final String QUEUE_NAME = RedisConstants.SECKILL_ORDER_QUEUE;
+    private static final String DEAD_LETTER_QUEUE = "stream.orders.dlq";
+    private static final String GROUP_NAME = RedisConstants.SECKILL_ORDER_GROUP;
+
+    private static final DefaultRedisScript<String> SECKILL_SCRIPT;
+    private static final DefaultRedisScript<Long> STREAM_GROUP_SCRIPT;
+    private static final DefaultRedisScript<String> AUTOCLAIM_SCRIPT;
 
     // 初始化提高性能
     static {
         SECKILL_SCRIPT = new DefaultRedisScript<>();
         SECKILL_SCRIPT.setLocation(new ClassPathResource("seckill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SCRIPT.setResultType(String.class);
+        STREAM_GROUP_SCRIPT = new DefaultRedisScript<>();
+        STREAM_GROUP_SCRIPT.setLocation(new ClassPathResource("stream_group.lua"));
+        STREAM_GROUP_SCRIPT.setResultType(Long.class);
+        AUTOCLAIM_SCRIPT = new DefaultRedisScript<>();
+        AUTOCLAIM_SCRIPT.setLocation(new ClassPathResource("stream_autoclaim.lua"));
+        AUTOCLAIM_SCRIPT.setResultType(String.class);
     }
 
+    private ExecutorService seckillOrderExecutor;
 
     @PostConstruct //当前类初始化之后执行
     private void init() {
-        SECKILL_ORDER_EXECUTOR.submit(new VoucherOrderHandler());
+        // 1.启动时自动创建消费者组 XGROUP CREATE stream.orders g1 0 MKSTREAM
+        stringRedisTemplate.execute(STREAM_GROUP_SCRIPT, Collections.singletonList(QUEUE_NAME), GROUP_NAME);
+        // 2.每个节点的每个线程使用唯一的消费者名称 host:port-i
+        String consumerPrefix = getHostName() + ":" + serverPort;
+        seckillOrderExecutor = Executors.newFixedThreadPool(consumerThreads, new NamedThreadFactory("seckill-order-", false));
+        for (int i = 0; i < consumerThreads; i++) {
+            seckillOrderExecutor.submit(new VoucherOrderHandler(consumerPrefix + "-" + i));
+        }
     }
 
-    private static final ExecutorService SECKILL_ORDER_EXECUTOR =
-            Executors.newSingleThreadExecutor();
+    @PreDestroy
+    private void destroy() {
+        seckillOrderExecutor.shutdownNow();
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return UUID.randomUUID().toString(true);
+        }
+    }
 
 
     private class VoucherOrderHandler implements Runnable {
-        String queueName = "stream.orders";
+        String queueName = QUEUE_NAME;
+
+        private final String consumerName;
+
+        /**
+         * 下一次认领空闲消息的时间
+         */
+        private long nextClaimTime;
+
+        VoucherOrderHandler(String consumerName) {
+            this.consumerName = consumerName;
+        }
 
         @Override
         public void run() {
-            while (true) {
+            // 节点重启后先处理自己遗留在PendingList中的消息
+            handlePendingList();
+            while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    //1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.order >
-                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                            StreamOffset.create(queueName, ReadOffset.lastConsumed())
-                    );
+                    // 定期认领宕机消费者遗留的消息
+                    if (System.currentTimeMillis() >= nextClaimTime) {
+                        claimIdlePending();
+                    }
+                    //1.批量获取消息队列中的订单信息 XREADGROUP GROUP g1 consumer COUNT n BLOCK 2000 STREAMS streams.order >
+                    List<MapRecord<String, Object, Object>> list = readBatch();
                     //2.判断消息获取是否成功
                     if (CollectionUtils.isEmpty(list)) {
                         //2.1如果获取失败，没有消息，继续下一次循环
                         continue;
                     }
-                    // 2.2解析消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //3.如果获取成功，创建
-                    handleVoucherOrder(voucherOrder);
-                    //4.ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    //3.如果获取成功，创建订单并ACK确认
+                    handleRecords(list);
                 } catch (Exception e) {
                     log.error("处理订单异常", e);
                     handlePendingList();
@@ -105,39 +207,166 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             }
         }
 
+        /**
+         * 用XAUTOCLAIM把空闲超时的消息认领到自己的PendingList，再统一处理
+         */
+        private void claimIdlePending() {
+            nextClaimTime = System.currentTimeMillis() + claimIntervalMs;
+            String cursor = "0-0";
+            do {
+                cursor = stringRedisTemplate.execute(
+                        AUTOCLAIM_SCRIPT,
+                        Collections.singletonList(queueName),
+                        GROUP_NAME,
+                        consumerName,
+                        String.valueOf(claimMinIdleMs),
+                        cursor,
+                        String.valueOf(batchSize)
+                );
+            } while (cursor != null && !"0-0".equals(cursor));
+            handlePendingList();
+        }
+
+        /**
+         * 攒批读取：第一次阻塞等待消息，拿到消息后在maxLinger时间内继续读取，直到凑满batchSize
+         */
+        private List<MapRecord<String, Object, Object>> readBatch() {
+            List<MapRecord<String, Object, Object>> batch = new ArrayList<>(batchSize);
+            long deadline = 0;
+            while (batch.size() < batchSize) {
+                long block = batch.isEmpty() ? 2000 : deadline - System.currentTimeMillis();
+                if (block <= 0) {
+                    // 攒批时间已到
+                    break;
+                }
+                List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                        Consumer.from(GROUP_NAME, consumerName),
+                        StreamReadOptions.empty().count(batchSize - batch.size()).block(Duration.ofMillis(block)),
+                        StreamOffset.create(queueName, ReadOffset.lastConsumed())
+                );
+                if (CollectionUtils.isEmpty(list)) {
+                    // 没有更多消息了
+                    break;
+                }
+                if (batch.isEmpty()) {
+                    deadline = System.currentTimeMillis() + maxLingerMs;
+                }
+                batch.addAll(list);
+            }
+            return batch;
+        }
+
+        private void handleRecords(List<MapRecord<String, Object, Object>> records) {
+            // 1.解析消息
+            List<VoucherOrder> voucherOrders = new ArrayList<>(records.size());
+            RecordId[] ids = new RecordId[records.size()];
+            for (int i = 0; i < records.size(); i++) {
+                MapRecord<String, Object, Object> record = records.get(i);
+                voucherOrders.add(BeanUtil.fillBeanWithMap(record.getValue(), new VoucherOrder(), true));
+                ids[i] = record.getId();
+            }
+            // 2.创建订单，只有一条消息时走原来的单条逻辑
+            Set<VoucherOrder> unwritten = Collections.newSetFromMap(new IdentityHashMap<>());
+            if (voucherOrders.size() == 1) {
+                if (!handleVoucherOrder(voucherOrders.get(0))) {
+                    unwritten.add(voucherOrders.get(0));
+                }
+            } else {
+                // 批量落库不加用户锁，一人一单由 uk_user_voucher 唯一索引保证，重复的订单跳过
+                unwritten.addAll(proxy.createVoucherOrderBatch(voucherOrders));
+            }
+            // 3.一次ACK确认已落库的消息 XACK stream.orders g1 id1 id2 ...
+            //   没有落库的消息留在PendingList，下次处理PendingList时重试
+            List<RecordId> acked = new ArrayList<>(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                if (!unwritten.contains(voucherOrders.get(i))) {
+                    acked.add(ids[i]);
+                }
+            }
+            if (!acked.isEmpty()) {
+                stringRedisTemplate.opsForStream().acknowledge(queueName, GROUP_NAME, acked.toArray(new RecordId[0]));
+            }
+        }
+
         private void handlePendingList() {
+            // 从上一批之后继续读取，没有落库、仍在PendingList中的消息本轮不再重复读取
+            String lastId = "0";
             while (true) {
                 try {
-                    //1.获取PendingList中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS streams.order 0
+                    //1.获取PendingList中的订单信息 XREADGROUP GROUP g1 consumer COUNT n STREAMS streams.order lastId
                     List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
-                            Consumer.from("g1", "c1"),
-                            StreamReadOptions.empty().count(1),
-                            StreamOffset.create(queueName, ReadOffset.from("0"))
+                            Consumer.from(GROUP_NAME, consumerName),
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(queueName, ReadOffset.from(lastId))
                     );
                     //2.判断消息获取是否成功
                     if (CollectionUtils.isEmpty(list)) {
                         //2.1如果获取失败，说明PendingList没有异常消息，结束循环
                         break;
                     }
-                    // 2.2解析消息
-                    MapRecord<String, Object, Object> record = list.get(0);
-                    Map<Object, Object> values = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(values, new VoucherOrder(), true);
-                    //3.如果获取成功，创建
-                    handleVoucherOrder(voucherOrder);
-                    //4.ACK确认 SACK stream.orders g1 id
-                    stringRedisTemplate.opsForStream().acknowledge(queueName, "g1", record.getId());
+                    lastId = list.get(list.size() - 1).getId().getValue();
+                    //3.投递次数超过上限的消息转入死信队列
+                    list = deadLetter(list);
+                    if (list.isEmpty()) {
+                        continue;
+                    }
+                    //4.创建订单并ACK确认，整批失败时逐条处理，只有失败的消息留在PendingList
+                    try {
+                        handleRecords(list);
+                    } catch (Exception e) {
+                        log.error("批量处理PendingList订单异常，逐条处理", e);
+                        handleEach(list);
+                    }
                 } catch (Exception e) {
                     log.error("处理PendingList订单异常", e);
                     try {
                         Thread.sleep(20);
                     } catch (InterruptedException ex) {
-                        throw new RuntimeException(ex);
+                        // 节点关闭
+                        Thread.currentThread().interrupt();
+                        return;
                     }
                 }
             }
         }
 
+        private void handleEach(List<MapRecord<String, Object, Object>> records) {
+            for (MapRecord<String, Object, Object> record : records) {
+                try {
+                    handleRecords(Collections.singletonList(record));
+                } catch (Exception e) {
+                    log.error("处理PendingList订单异常，消息id：" + record.getId(), e);
+                }
+            }
+        }
+
+        /**
+         * XPENDING查询投递次数，超过上限的消息XADD到 stream.orders.dlq 后ACK，返回其余的消息
+         */
+        private List<MapRecord<String, Object, Object>> deadLetter(List<MapRecord<String, Object, Object>> records) {
+            PendingMessages pending = stringRedisTemplate.opsForStream().pending(queueName, Consumer.from(GROUP_NAME, consumerName),
+                    Range.closed(records.get(0).getId().getValue(), records.get(records.size() - 1).getId().getValue()),
+                    (long) records.size());
+            Map<String, Long> deliveries = new HashMap<>(records.size());
+            pending.forEach(message -> deliveries.put(message.getIdAsString(), message.getTotalDeliveryCount()));
+            List<MapRecord<String, Object, Object>> alive = new ArrayList<>(records.size());
+            for (MapRecord<String, Object, Object> record : records) {
+                Long count = deliveries.get(record.getId().getValue());
+                if (count == null || count <= maxDeliveries) {
+                    alive.add(record);
+                    continue;
+                }
+                // 保留原消息内容和id，人工处理后可以重新投递
+                Map<Object, Object> value = new HashMap<>(record.getValue());
+                value.put("sourceId", record.getId().getValue());
+                value.put("deliveries", count.toString());
+                stringRedisTemplate.opsForStream().add(DEAD_LETTER_QUEUE, value);
+                stringRedisTemplate.opsForStream().acknowledge(queueName, GROUP_NAME, record.getId());
+                log.error("订单消息投递" + count + "次仍未落库，转入死信队列，消息id：" + record.getId() + "，内容：" + record.getValue());
+            }
+            return alive;
+        }
+
    /* private BlockingQueue<VoucherOrder> orderTasks = new ArrayBlockingQueue<>(1024 * 1024);
     private class VoucherOrderHandler implements Runnable {
 
@@ -158,7 +387,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             }
         }*/
 
-        private void handleVoucherOrder(VoucherOrder voucherOrder) {
+        /**
+         * @return 订单已落库返回true，可以ACK
+         */
+        private boolean handleVoucherOrder(VoucherOrder voucherOrder) {
             //获取用户
             Long userId = voucherOrder.getUserId();
             RLock lock = redissonClient.getLock("lock:order:" + userId);
@@ -166,10 +398,18 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
             if (!isLock) {
                 //失败 返回错误或重试
                 log.error("不允许重复下单");
-                return;
+                return false;
             }
             try {
-                proxy.createVoucherOrder(voucherOrder);
+                return proxy.createVoucherOrder(voucherOrder);
+            } catch (DuplicateKeyException e) {
+                // 事务已回滚库存扣减；其它节点的批量落库已经写入了这一单时视为成功并ACK，
+                // 否则是订单id主键冲突，抛出异常不ACK，留在PendingList
+                if (query().eq("user_id", userId).eq("voucher_id", voucherOrder.getVoucherId()).count() == 0) {
+                    throw e;
+                }
+                log.info("订单已存在，用户：{}，优惠券：{}", userId, voucherOrder.getVoucherId());
+                return true;
             } catch (IllegalStateException e) {
                 throw new RuntimeException(e);
             } finally {
@@ -181,22 +421,68 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     @Override
     public Result seckillVoucher(Long voucherId) {
+        // 0.本地已标记售罄，直接返回，不再访问Redis
+        if (seckillSoldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("库存不足");
+        }
         // 获取用户
         Long userId = UserHolder.getUser().getId();
-        // 获取订单Id
-        long order = redisIdWorker.nextId("order");
-        // 1.执行lua脚本
-        Long result = stringRedisTemplate.execute(
-                SECKILL_SCRIPT,
-                Collections.emptyList(),
-                voucherId.toString(),
-                userId.toString(),
-                String.valueOf(order)
-        );
+        // 执行脚本之前的库存版本，脚本返回售罄后如果已经补货，这次的售罄标记会被忽略
+        long epoch = seckillSoldOutRegistry.epoch(voucherId);
+        // 1.执行lua脚本，只有通过资格校验的请求才生成订单Id
+        int r;
+        long order = 0;
+        if (seckillStockShards.isEnabled()) {
+            // 1.1分片库存模式，脚本只操作同一slot的key，订单消息单独发送
+            SeckillStockShards.Acquired acquired = seckillStockShards.tryAcquire(voucherId, userId);
+            r = acquired.getResult();
+            if (r == 0) {
+                try {
+                    order = redisIdWorker.nextId("order");
+                    Map<String, String> message = new HashMap<>(3);
+                    message.put("userId", userId.toString());
+                    message.put("voucherId", voucherId.toString());
+                    message.put("id", String.valueOf(order));
+                    stringRedisTemplate.opsForStream().add(QUEUE_NAME, message);
+                } catch (RuntimeException e) {
+                    // 1.1.1消息没有发出，订单不会落库，归还库存和下单资格
+                    releaseShard(acquired, voucherId, userId, e);
+                    return Result.fail("下单失败，请重试");
+                }
+            }
+        } else {
+            // 1.2订单Id在脚本中用同一个计数器生成，被拒绝的请求不消耗计数器
+            //    雪花算法模式下本地生成Id不需要访问网络，直接传给脚本
+            String idKey = "";
+            String id;
+            if (redisIdWorker.isSnowflake()) {
+                id = String.valueOf(redisIdWorker.nextId("order"));
+            } else {
+                LocalDateTime now = LocalDateTime.now();
+                idKey = redisIdWorker.counterKey("order", now);
+                id = String.valueOf(redisIdWorker.idBase(now));
+            }
+            String result = stringRedisTemplate.execute(
+                    SECKILL_SCRIPT,
+                    Collections.emptyList(),
+                    voucherId.toString(),
+                    userId.toString(),
+                    idKey,
+                    id
+            );
+            // 脚本返回1或2代表没有购买资格，否则返回订单Id
+            r = result.length() == 1 ? Integer.parseInt(result) : 0;
+            if (r == 0) {
+                order = Long.parseLong(result);
+            }
+        }
         // 2.判断结果是否为0
-        int r = result.intValue();
         if (r != 0) {
             // 2.1不为0，没有购买资格
+            if (r == 1) {
+                // 售罄，标记并通知其它节点
+                seckillSoldOutRegistry.markSoldOut(voucherId, epoch);
+            }
             return Result.fail(r == 1 ? "库存不足" : "不能重复下单");
         }
        /* // 2.2为0，有购买资格，把下单的信息保存到阻塞队列中
@@ -208,11 +494,25 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         voucherOrder.setVoucherId(voucherId);
         // 2.3放入阻塞队列
         orderTasks.add(voucherOrder);*/
-        // 拿到事务代理的对象才可以 （this拿到的是取当前对象）
-        proxy = (IVoucherOrderService) AopContext.currentProxy(); // 这样获取当前对象的代理对象
         return Result.ok(order);
     }
 
+    private void releaseShard(SeckillStockShards.Acquired acquired, Long voucherId, Long userId, RuntimeException cause) {
+        log.error("发送下单消息失败，归还库存，优惠券：{}，用户：{}", voucherId, userId, cause);
+        try {
+            seckillStockShards.release(acquired, userId);
+        } catch (RuntimeException e) {
+            // 归还也失败时只能人工处理，记录扣减的key
+            log.error("归还库存失败，需要人工补偿，库存key：{}，订单key：{}，用户：{}",
+                    acquired.getStockKey(), acquired.getOrderKey(), userId, e);
+        }
+    }
+
+    /**
+     * 事务代理对象，消费者线程启动时就要处理PendingList，不能等第一次下单请求再从AopContext获取
+     */
+    @Lazy
+    @Resource
     private IVoucherOrderService proxy;
 
 
@@ -284,8 +584,9 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     }
 
+    @Override
     @Transactional
-    public void createVoucherOrder(VoucherOrder voucherOrder) {
+    public boolean createVoucherOrder(VoucherOrder voucherOrder) {
         // 根据优惠价id和用户id查询订单 一人一单
         Long userId = voucherOrder.getId();
 
@@ -295,7 +596,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (count > 0) {
             // 存在
             log.error("已经够购买过了！");
-            return;
+            return true;
         }
         //5.不存在（）扣减库存 （乐观锁 适合更新数据的时候用）
         boolean sunccess = seckillVoucherService.update()
@@ -304,9 +605,78 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if (!sunccess) {
             // 扣减不足
             log.error("库存不足！");
-            return;
+            return false;
         }
         this.save(voucherOrder);
+        return true;
+    }
+
+    @Override
+    @Transactional
+    public List<VoucherOrder> createVoucherOrderBatch(List<VoucherOrder> voucherOrders) {
+        // 1.批次内去重 同一用户同一优惠券只保留一单
+        Map<String, VoucherOrder> orderMap = new LinkedHashMap<>();
+        for (VoucherOrder voucherOrder : voucherOrders) {
+            orderMap.putIfAbsent(voucherOrder.getUserId() + ":" + voucherOrder.getVoucherId(), voucherOrder);
+        }
+        // 2.一次查询过滤掉已经落库的订单（消息重投时会出现）一人一单
+        Set<Long> userIds = orderMap.values().stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+        Set<Long> voucherIds = orderMap.values().stream().map(VoucherOrder::getVoucherId).collect(Collectors.toSet());
+        List<VoucherOrder> existOrders = query().select("user_id", "voucher_id")
+                .in("user_id", userIds).in("voucher_id", voucherIds).list();
+        for (VoucherOrder existOrder : existOrders) {
+            orderMap.remove(existOrder.getUserId() + ":" + existOrder.getVoucherId());
+        }
+        List<VoucherOrder> unwritten = new ArrayList<>();
+        if (orderMap.isEmpty()) {
+            return unwritten;
+        }
+        // 3.按优惠券分组，每个优惠券只扣减一次库存 stock = stock - n，再多行插入订单
+        Map<Long, List<VoucherOrder>> voucherOrderMap = orderMap.values().stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, LinkedHashMap::new, Collectors.toList()));
+        voucherOrderMap.forEach((voucherId, orders) -> {
+            int size = orders.size();
+            boolean success = seckillVoucherService.update()
+                    .setSql("stock = stock - " + size)
+                    .eq("voucher_id", voucherId).ge("stock", size).update();
+            List<VoucherOrder> saveOrders = orders;
+            if (!success) {
+                // 3.1库存不够整组扣减，逐单扣减，扣不到库存的订单不落库，返回给调用方不ACK
+                saveOrders = new ArrayList<>(size);
+                boolean deducted = true;
+                for (VoucherOrder order : orders) {
+                    // 扣减失败一次后库存已经为0，剩下的订单不再尝试
+                    deducted = deducted && seckillVoucherService.update()
+                            .setSql("stock = stock - 1")
+                            .eq("voucher_id", voucherId).gt("stock", 0).update();
+                    if (deducted) {
+                        saveOrders.add(order);
+                    } else {
+                        unwritten.add(order);
+                    }
+                }
+                log.error("库存不足！voucherId=" + voucherId + ", count=" + size + ", unwritten=" + (size - saveOrders.size()));
+                if (saveOrders.isEmpty()) {
+                    return;
+                }
+            }
+            // 4.查询之后其它节点可能已经写入了同一单，INSERT IGNORE跳过，多扣的库存加回去
+            int inserted = getBaseMapper().insertBatch(saveOrders);
+            if (inserted < saveOrders.size()) {
+                // INSERT IGNORE也会跳过订单id主键冲突的行，确认每个用户都已经有这一单，否则整批回滚不ACK
+                Set<Long> savedUserIds = saveOrders.stream().map(VoucherOrder::getUserId).collect(Collectors.toSet());
+                int exists = query().eq("voucher_id", voucherId).in("user_id", savedUserIds).count();
+                if (exists < saveOrders.size()) {
+                    throw new IllegalStateException("订单id冲突，voucherId=" + voucherId
+                            + ", count=" + (saveOrders.size() - exists));
+                }
+                log.info("跳过已存在的订单，voucherId=" + voucherId + ", count=" + (saveOrders.size() - inserted));
+                seckillVoucherService.update()
+                        .setSql("stock = stock + " + (saveOrders.size() - inserted))
+                        .eq("voucher_id", voucherId).update();
+            }
+        });
+        return unwritten;
     }
 
     @Transactional
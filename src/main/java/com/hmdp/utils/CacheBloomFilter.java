@@ -0,0 +1,345 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.BooleanUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 布隆过滤器，放在缓存前面拦截一定不存在的id，防止缓存穿透
+ * <p>
+ * 每个key前缀一个Redis bitmap，bloom:{keyPrefix}current 指向正在使用的bitmap。
+ * 重建时写入新的bitmap，写完后切换指针并通知所有节点，重建期间新增的id会同时写入新旧两个bitmap。
+ * 漏掉切换通知的节点定期重新读取指针；查询时bitmap已经不存在则放行，并立即重新读取指针
+ */
+@Slf4j
+@Component
+public class CacheBloomFilter implements MessageListener {
+
+    /**
+     * 每批写入的id个数
+     */
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    /**
+     * 切换后旧bitmap保留的时间（秒），等其它节点切换完成
+     */
+    private static final long OLD_FILTER_TTL = 60L;
+
+    /**
+     * 定期重新读取指针的间隔（秒），小于旧bitmap的保留时间
+     */
+    private static final long REFRESH_INTERVAL = OLD_FILTER_TTL / 2;
+
+    private static final DefaultRedisScript<Long> CONTAINS_SCRIPT;
+    private static final DefaultRedisScript<Long> ADD_SCRIPT;
+
+    // 初始化提高性能
+    static {
+        CONTAINS_SCRIPT = new DefaultRedisScript<>();
+        CONTAINS_SCRIPT.setLocation(new ClassPathResource("bloom_contains.lua"));
+        CONTAINS_SCRIPT.setResultType(Long.class);
+        ADD_SCRIPT = new DefaultRedisScript<>();
+        ADD_SCRIPT.setLocation(new ClassPathResource("bloom_add.lua"));
+        ADD_SCRIPT.setResultType(Long.class);
+    }
+
+    /**
+     * 预计元素个数
+     */
+    @Value("${cache.bloom.expected-insertions:1000000}")
+    private long expectedInsertions;
+
+    /**
+     * 误判率
+     */
+    @Value("${cache.bloom.false-probability:0.01}")
+    private double falseProbability;
+
+    /**
+     * 定期重建的间隔（小时），删除的数据会一直留在过滤器中，需要定期重建
+     */
+    @Value("${cache.bloom.rebuild-interval-hours:24}")
+    private long rebuildIntervalHours;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisConnectionFactory redisConnectionFactory;
+
+    /**
+     * bitmap的位数
+     */
+    private long numBits;
+
+    /**
+     * 哈希函数个数
+     */
+    private int numHashFunctions;
+
+    /**
+     * 每个key前缀全量id的加载方法
+     */
+    private final Map<String, Supplier<List<Long>>> loaders = new ConcurrentHashMap<>();
+
+    /**
+     * 每个key前缀正在使用的bitmap key
+     */
+    private final Map<String, String> currentFilters = new ConcurrentHashMap<>();
+
+    /**
+     * bitmap丢失后已经提交重建的key前缀，避免重复提交
+     */
+    private final Set<String> recovering = ConcurrentHashMap.newKeySet();
+
+    private RedisMessageListenerContainer container;
+
+    private ScheduledExecutorService rebuildExecutor;
+
+    @PostConstruct
+    private void init() {
+        // m = -n * ln(p) / (ln2)^2  k = m / n * ln2
+        numBits = (long) (-expectedInsertions * Math.log(falseProbability) / (Math.log(2) * Math.log(2)));
+        numHashFunctions = Math.max(1, (int) Math.round((double) numBits / expectedInsertions * Math.log(2)));
+        // 订阅重建完成通知，切换到新的bitmap
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener(this, new ChannelTopic(BLOOM_SWITCH_CHANNEL));
+        container.afterPropertiesSet();
+        container.start();
+        rebuildExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("bloom-rebuild-", true));
+    }
+
+    @PreDestroy
+    private void destroy() throws Exception {
+        rebuildExecutor.shutdownNow();
+        container.destroy();
+    }
+
+    /**
+     * 注册一个key前缀的布隆过滤器，应用启动完成后加载
+     *
+     * @param keyPrefix 缓存key前缀，如 CACHE_SHOP_KEY
+     * @param loader    查询全量id
+     */
+    public void register(String keyPrefix, Supplier<List<Long>> loader) {
+        loaders.put(keyPrefix, loader);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void onApplicationReady() {
+        loaders.keySet().forEach(keyPrefix -> {
+            String current = stringRedisTemplate.opsForValue().get(currentKey(keyPrefix));
+            if (current != null) {
+                // 其它节点已经建好了，直接使用
+                currentFilters.put(keyPrefix, current);
+            } else {
+                rebuildExecutor.execute(() -> rebuild(keyPrefix));
+            }
+            rebuildExecutor.scheduleWithFixedDelay(() -> rebuild(keyPrefix),
+                    rebuildIntervalHours, rebuildIntervalHours, TimeUnit.HOURS);
+        });
+        // 不只依赖发布订阅，定期重新读取指针
+        rebuildExecutor.scheduleWithFixedDelay(() -> loaders.keySet().forEach(this::refresh),
+                REFRESH_INTERVAL, REFRESH_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 是否可能存在，还没有建好过滤器或bitmap不存在时放行
+     */
+    public boolean mightContain(String keyPrefix, Object id) {
+        String filterKey = currentFilters.get(keyPrefix);
+        if (filterKey == null) {
+            return true;
+        }
+        try {
+            Long result = stringRedisTemplate.execute(CONTAINS_SCRIPT, Collections.singletonList(filterKey), toArgs(offsets(id)));
+            if (result != null && result == -1) {
+                // bitmap已经不存在，可能漏掉了切换通知或者bitmap被淘汰
+                recover(keyPrefix, filterKey);
+                return true;
+            }
+            return result == null || result == 1;
+        } catch (Exception e) {
+            // 过滤器不可用时放行，交给缓存和数据库处理
+            log.error("布隆过滤器查询失败", e);
+            return true;
+        }
+    }
+
+    /**
+     * 新增数据后加入过滤器，正在重建时同时写入新的bitmap
+     */
+    public void add(String keyPrefix, Object id) {
+        String[] offsets = toArgs(offsets(id));
+        List<String> filterKeys = stringRedisTemplate.opsForValue()
+                .multiGet(Arrays.asList(currentKey(keyPrefix), buildingKey(keyPrefix)));
+        if (filterKeys == null) {
+            return;
+        }
+        for (String filterKey : filterKeys) {
+            if (filterKey != null) {
+                stringRedisTemplate.execute(ADD_SCRIPT, Collections.singletonList(filterKey), offsets);
+            }
+        }
+    }
+
+    /**
+     * 在线重建：写入新的bitmap后切换，重建期间旧的bitmap照常使用
+     */
+    public void rebuild(String keyPrefix) {
+        Supplier<List<Long>> loader = loaders.get(keyPrefix);
+        if (loader == null) {
+            return;
+        }
+        // 同一时间只允许一个节点重建
+        String lockKey = LOCK_CACHE_KEY + BLOOM_KEY + keyPrefix;
+        Boolean isLock = stringRedisTemplate.opsForValue().setIfAbsent(lockKey, "1", LOCK_BLOOM_TTL, TimeUnit.MINUTES);
+        if (!BooleanUtil.isTrue(isLock)) {
+            return;
+        }
+        try {
+            String filterKey = BLOOM_KEY + keyPrefix + System.currentTimeMillis();
+            // 1.先创建并登记正在重建的bitmap，之后新增的id会同时写入
+            stringRedisTemplate.opsForValue().setBit(filterKey, 0, false);
+            stringRedisTemplate.opsForValue().set(buildingKey(keyPrefix), filterKey, LOCK_BLOOM_TTL, TimeUnit.MINUTES);
+            // 2.查询全量id，分批用pipeline写入
+            List<Long> ids = loader.get();
+            for (int from = 0; from < ids.size(); from += LOAD_BATCH_SIZE) {
+                List<Long> batch = ids.subList(from, Math.min(from + LOAD_BATCH_SIZE, ids.size()));
+                stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                    StringRedisConnection stringConnection = (StringRedisConnection) connection;
+                    for (Long id : batch) {
+                        for (long offset : offsets(id)) {
+                            stringConnection.setBit(filterKey, offset, true);
+                        }
+                    }
+                    return null;
+                });
+            }
+            // 3.切换指针，旧的bitmap延迟删除
+            String old = stringRedisTemplate.opsForValue().getAndSet(currentKey(keyPrefix), filterKey);
+            stringRedisTemplate.delete(buildingKey(keyPrefix));
+            if (old != null) {
+                stringRedisTemplate.expire(old, OLD_FILTER_TTL, TimeUnit.SECONDS);
+            }
+            currentFilters.put(keyPrefix, filterKey);
+            // 4.通知其它节点切换
+            stringRedisTemplate.convertAndSend(BLOOM_SWITCH_CHANNEL, keyPrefix);
+            log.info("布隆过滤器重建完成：" + keyPrefix + "，共" + ids.size() + "条");
+        } catch (Exception e) {
+            log.error("布隆过滤器重建失败：" + keyPrefix, e);
+        } finally {
+            stringRedisTemplate.delete(lockKey);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        refresh(new String(message.getBody(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * 重新读取 bloom:{keyPrefix}current 指向的bitmap
+     */
+    private String refresh(String keyPrefix) {
+        try {
+            String current = stringRedisTemplate.opsForValue().get(currentKey(keyPrefix));
+            if (current != null) {
+                currentFilters.put(keyPrefix, current);
+            }
+            return current;
+        } catch (Exception e) {
+            log.error("读取布隆过滤器指针失败：" + keyPrefix, e);
+            return null;
+        }
+    }
+
+    /**
+     * 查询时发现bitmap不存在：指针已经切换则使用新的bitmap，指针仍指向它说明bitmap被淘汰了，
+     * 停止使用并重建，重建完成前全部放行
+     */
+    private void recover(String keyPrefix, String missingKey) {
+        String current = refresh(keyPrefix);
+        if (current != null && !current.equals(missingKey)) {
+            return;
+        }
+        currentFilters.remove(keyPrefix, missingKey);
+        if (recovering.add(keyPrefix)) {
+            log.error("布隆过滤器bitmap不存在，重新构建：" + missingKey);
+            rebuildExecutor.execute(() -> {
+                try {
+                    rebuild(keyPrefix);
+                } finally {
+                    recovering.remove(keyPrefix);
+                }
+            });
+        }
+    }
+
+    /**
+     * 双重哈希计算k个bit位 g(i) = h1 + i * h2
+     */
+    private long[] offsets(Object id) {
+        long hash = MurmurHash.hash64(String.valueOf(id));
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        long[] offsets = new long[numHashFunctions];
+        for (int i = 1; i <= numHashFunctions; i++) {
+            int combinedHash = hash1 + i * hash2;
+            if (combinedHash < 0) {
+                combinedHash = ~combinedHash;
+            }
+            offsets[i - 1] = combinedHash % numBits;
+        }
+        return offsets;
+    }
+
+    private static String[] toArgs(long[] offsets) {
+        String[] args = new String[offsets.length];
+        for (int i = 0; i < offsets.length; i++) {
+            args[i] = String.valueOf(offsets[i]);
+        }
+        return args;
+    }
+
+    private static String currentKey(String keyPrefix) {
+        return BLOOM_KEY + keyPrefix + "current";
+    }
+
+    private static String buildingKey(String keyPrefix) {
+        return BLOOM_KEY + keyPrefix + "building";
+    }
+}
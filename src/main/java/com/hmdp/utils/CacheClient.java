@@ -1,18 +1,49 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.thread.NamedThreadFactory;
 import cn.hutool.core.util.BooleanUtil;
-import cn.hutool.core.util.StrUtil;
-import cn.hutool.json.JSONObject;
-import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.data.redis.serializer.RedisSerializer;
 import org.springframework.stereotype.Component;
 import org.springframework.util.ObjectUtils;
 
-import java.time.LocalDateTime;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -23,24 +54,403 @@ import static com.hmdp.utils.RedisConstants.*;
  */
 @Component
 @Slf4j
-public class CacheClient {
+public class CacheClient implements MessageListener {
+
+    /**
+     * 本地缓存中的空值，防止缓存穿透
+     */
+    private static final Object NULL_VALUE = new Object();
+
+    /**
+     * 本地JSON缓存中的空值
+     */
+    private static final byte[] NULL_JSON = new byte[0];
+
+    /**
+     * 没抢到互斥锁时等待重建完成通知的最长时间（毫秒）
+     */
+    private static final long LOCK_WAIT_MILLIS = 200;
 
     private final StringRedisTemplate stringRedisTemplate;
 
-    public CacheClient(StringRedisTemplate stringRedisTemplate) {
+    private final RedisConnectionFactory redisConnectionFactory;
+
+    /**
+     * 一级本地缓存，按key前缀配置，未配置的前缀只走Redis
+     */
+    private final Map<String, Cache<String, Object>> localCaches = new ConcurrentHashMap<>();
+
+    /**
+     * 渲染好的JSON本地缓存，与一级本地缓存同时开启，用于直接拼接到响应中
+     */
+    private final Map<String, Cache<String, byte[]>> localJsonCaches = new ConcurrentHashMap<>();
+
+    /**
+     * 按桶存储的key前缀，多个对象放在同一个hash中，节省每个key的额外开销
+     */
+    private final Map<String, BucketConfig> bucketConfigs = new ConcurrentHashMap<>();
+
+    /**
+     * 正在查库的key，同一个key的并发请求共享一次查库结果
+     */
+    private final Map<String, CompletableFuture<Object>> inFlightLoads = new ConcurrentHashMap<>();
+
+    /**
+     * 等待其它节点重建缓存的key
+     */
+    private final Map<String, CompletableFuture<Void>> loadedWaiters = new ConcurrentHashMap<>();
+
+    /**
+     * 概率提前过期的系数，越大越早重建
+     */
+    @Value("${cache.xfetch.beta:1.0}")
+    private double xfetchBeta;
+
+    /**
+     * 默认的过期时间随机延长比例，避免同一批写入的key同时过期
+     */
+    @Value("${cache.ttl-jitter.default:0.1}")
+    private double defaultTtlJitter;
+
+    /**
+     * 按key前缀配置的过期时间随机延长比例
+     */
+    private final Map<String, Double> ttlJitters = new ConcurrentHashMap<>();
+
+    /**
+     * 逻辑过期key刷新线程数
+     */
+    @Value("${cache.refresh.threads:4}")
+    private int refreshThreads;
+
+    /**
+     * 刷新队列长度，队列满时拒绝，不影响其它异步任务
+     */
+    @Value("${cache.refresh.queue-capacity:1000}")
+    private int refreshQueueCapacity;
+
+    /**
+     * 距离逻辑过期多久开始提前刷新（毫秒）
+     */
+    @Value("${cache.refresh.ahead-millis:5000}")
+    private long refreshAheadMillis;
+
+    /**
+     * 多久内被访问过的key才提前刷新（毫秒）
+     */
+    @Value("${cache.refresh.access-window-millis:60000}")
+    private long refreshAccessWindowMillis;
+
+    /**
+     * 扫描快过期key的间隔（毫秒）
+     */
+    @Value("${cache.refresh.scan-interval-millis:1000}")
+    private long refreshScanIntervalMillis;
+
+    /**
+     * 最多跟踪的逻辑过期key数
+     */
+    @Value("${cache.refresh.max-tracked-keys:10000}")
+    private int refreshMaxTrackedKeys;
+
+    /**
+     * 逻辑过期key的刷新信息
+     */
+    private final Map<String, RefreshTask> refreshTasks = new ConcurrentHashMap<>();
+
+    /**
+     * 已经提交、还没有执行完的刷新
+     */
+    private final Set<String> pendingRefreshes = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong refreshCompleted = new AtomicLong();
+    private final AtomicLong refreshRejected = new AtomicLong();
+
+    private ThreadPoolExecutor refreshExecutor;
+
+    private ScheduledExecutorService refreshScanner;
+
+    private RedisMessageListenerContainer container;
+
+    private final CacheBloomFilter cacheBloomFilter;
+
+    private final CacheValueSerializer serializer;
+
+    private final HotKeyDetector hotKeyDetector;
+
+    public CacheClient(StringRedisTemplate stringRedisTemplate,
+                       RedisConnectionFactory redisConnectionFactory,
+                       CacheBloomFilter cacheBloomFilter,
+                       CacheValueSerializer serializer,
+                       HotKeyDetector hotKeyDetector) {
         this.stringRedisTemplate = stringRedisTemplate;
+        this.redisConnectionFactory = redisConnectionFactory;
+        this.cacheBloomFilter = cacheBloomFilter;
+        this.serializer = serializer;
+        this.hotKeyDetector = hotKeyDetector;
+    }
+
+    @PostConstruct
+    private void init() {
+        // 订阅缓存失效通知删除本节点的本地缓存，订阅缓存重建完成通知唤醒等待锁的线程
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener(this, Arrays.asList(
+                new ChannelTopic(CACHE_INVALIDATE_CHANNEL), new ChannelTopic(CACHE_LOADED_CHANNEL)));
+        container.afterPropertiesSet();
+        container.start();
+        // 逻辑过期key的刷新使用独立的有界线程池，不占用公共的ForkJoinPool
+        refreshExecutor = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(refreshQueueCapacity), new NamedThreadFactory("cache-refresh-", true));
+        refreshScanner = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("cache-refresh-scan-", true));
+        refreshScanner.scheduleWithFixedDelay(this::scanRefreshTasks,
+                refreshScanIntervalMillis, refreshScanIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() throws Exception {
+        refreshScanner.shutdownNow();
+        refreshExecutor.shutdownNow();
+        container.destroy();
+    }
+
+    /**
+     * 为某个key前缀开启本地缓存
+     *
+     * @param keyPrefix   key前缀，如 CACHE_SHOP_KEY
+     * @param maximumSize 最多缓存的条数，超过后按照访问频率淘汰
+     * @param time        本地缓存的过期时间，应该远小于Redis中的过期时间
+     */
+    public void enableLocalCache(String keyPrefix, long maximumSize, Long time, TimeUnit timeUnit) {
+        localCaches.put(keyPrefix, Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(time, timeUnit)
+                .build());
+        localJsonCaches.put(keyPrefix, Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(time, timeUnit)
+                .build());
+    }
+
+    /**
+     * 为某个key前缀设置过期时间的随机延长比例，如0.2代表过期时间随机延长0~20%
+     */
+    public void setTtlJitter(String keyPrefix, double ratio) {
+        ttlJitters.put(keyPrefix, ratio);
+    }
+
+    private long jitterMillis(String key, long millis) {
+        double ratio = defaultTtlJitter;
+        for (Map.Entry<String, Double> entry : ttlJitters.entrySet()) {
+            if (key.startsWith(entry.getKey())) {
+                ratio = entry.getValue();
+                break;
+            }
+        }
+        return millis + (long) (ThreadLocalRandom.current().nextDouble() * millis * ratio);
+    }
+
+    /**
+     * 为某个key前缀开启按桶存储：id为n的对象写入 {keyPrefix}bucket:{n / bucketSize} 的hash中，字段为id
+     * <p>
+     * 每个hash的条数和每条的字节数不超过 hash-max-listpack-entries、hash-max-listpack-value 时使用紧凑的listpack编码。
+     * hash的字段不能单独过期，每条数据按照头部的过期时间判断是否过期，桶本身在最后一次写入后 bucketTtl 过期。
+     * 逻辑过期的数据不按桶存储
+     *
+     * @param bucketSize 每个桶的条数
+     * @param bucketTtl  桶的过期时间，应该不小于数据的过期时间
+     */
+    public void enableBucketStorage(String keyPrefix, int bucketSize, Long bucketTtl, TimeUnit timeUnit) {
+        bucketConfigs.put(keyPrefix, new BucketConfig(bucketSize, timeUnit.toMillis(bucketTtl)));
+    }
+
+    /**
+     * key所在的桶和字段，不按桶存储时返回null
+     */
+    private BucketSlot bucketSlot(String key) {
+        for (Map.Entry<String, BucketConfig> entry : bucketConfigs.entrySet()) {
+            String keyPrefix = entry.getKey();
+            if (!key.startsWith(keyPrefix)) {
+                continue;
+            }
+            String field = key.substring(keyPrefix.length());
+            long id;
+            try {
+                id = Long.parseLong(field);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            BucketConfig config = entry.getValue();
+            return new BucketSlot(rawKey(keyPrefix + "bucket:" + id / config.size), rawKey(field), config.ttlMillis);
+        }
+        return null;
+    }
+
+    /**
+     * 读取缓存，按桶存储时从hash中读取并判断是否过期
+     */
+    private byte[] readRaw(String key) {
+        BucketSlot slot = bucketSlot(key);
+        if (slot == null) {
+            return get(key);
+        }
+        return unwrapBucketValue(stringRedisTemplate.execute(
+                (RedisCallback<byte[]>) connection -> connection.hGet(slot.key, slot.field)));
+    }
+
+    /**
+     * 写入缓存，空值写入空数组
+     */
+    private void writeRaw(RedisConnection connection, String key, byte[] raw, long millis) {
+        BucketSlot slot = bucketSlot(key);
+        if (slot == null) {
+            connection.pSetEx(rawKey(key), millis, raw);
+            return;
+        }
+        // 桶中的空值只记录过期时间
+        byte[] value = raw.length == 0
+                ? ByteBuffer.allocate(8).putLong(System.currentTimeMillis() + millis).array()
+                : raw;
+        connection.hSet(slot.key, slot.field, value);
+        connection.pExpire(slot.key, Math.max(millis, slot.ttlMillis));
+    }
+
+    private byte[] unwrapBucketValue(byte[] value) {
+        if (value == null) {
+            return null;
+        }
+        long expireMillis = value.length == 8 ? ByteBuffer.wrap(value).getLong() : serializer.expireMillis(value);
+        if (expireMillis <= System.currentTimeMillis()) {
+            // 已过期，当作未命中
+            return null;
+        }
+        return value.length == 8 ? new byte[0] : value;
+    }
+
+    /**
+     * 删除缓存，并通知所有节点删除本地缓存
+     */
+    public void delete(String key) {
+        stringRedisTemplate.delete(key);
+        BucketSlot slot = bucketSlot(key);
+        if (slot != null) {
+            stringRedisTemplate.execute((RedisCallback<Long>) connection -> connection.hDel(slot.key, slot.field));
+        }
+        evictLocal(key);
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String key = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (CACHE_LOADED_CHANNEL.equals(channel)) {
+            // 缓存重建完成，唤醒本节点等待的线程
+            CompletableFuture<Void> loaded = loadedWaiters.remove(key);
+            if (loaded != null) {
+                loaded.complete(null);
+            }
+            return;
+        }
+        evictLocal(key);
+    }
+
+    private void evictLocal(String key) {
+        hotKeyDetector.invalidate(key);
+        localCaches.forEach((keyPrefix, localCache) -> {
+            if (key.startsWith(keyPrefix)) {
+                localCache.invalidate(key);
+            }
+        });
+        localJsonCaches.forEach((keyPrefix, localJsonCache) -> {
+            if (key.startsWith(keyPrefix)) {
+                localJsonCache.invalidate(key);
+            }
+        });
+    }
+
+    /**
+     * 记录访问，依次查热点key的本地副本和本地缓存
+     */
+    private Object getLocal(String keyPrefix, String key) {
+        hotKeyDetector.record(key);
+        Object value = hotKeyDetector.getReplica(key);
+        if (value != null) {
+            return value;
+        }
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        return localCache == null ? null : localCache.getIfPresent(key);
+    }
+
+    private void putLocal(String keyPrefix, String key, Object value) {
+        Object local = value == null ? NULL_VALUE : value;
+        // 热点key即使没有开启本地缓存也保存一份短期副本
+        hotKeyDetector.putReplica(key, local);
+        Cache<String, Object> localCache = localCaches.get(keyPrefix);
+        if (localCache != null) {
+            localCache.put(key, local);
+        }
     }
 
     public void set(String key, Object value, Long time, TimeUnit timeUnit) {
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
+        long millis = jitterMillis(key, timeUnit.toMillis(time));
+        byte[] raw = serializer.serialize(value, System.currentTimeMillis() + millis);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            writeRaw(connection, key, raw, millis);
+            return null;
+        });
+    }
+
+    /**
+     * 用pipeline批量写入缓存，用于预热
+     *
+     * @param values        id -> 对象
+     * @param logicalExpire true：写入逻辑过期格式，Redis中不设置过期时间
+     */
+    public void setBatch(String keyPrefix, Map<?, ?> values, Long time, TimeUnit timeUnit, boolean logicalExpire) {
+        long millis = timeUnit.toMillis(time);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            values.forEach((id, value) -> {
+                String key = keyPrefix.concat(String.valueOf(id));
+                long ttl = jitterMillis(key, millis);
+                long expireMillis = System.currentTimeMillis() + ttl;
+                if (logicalExpire) {
+                    connection.set(rawKey(key), serializer.serialize(value, expireMillis));
+                } else {
+                    // 预热时不知道重建耗时，按1毫秒记录，接近过期时才会提前重建
+                    writeRaw(connection, key, serializer.serialize(value, expireMillis, 1), ttl);
+                }
+            });
+            return null;
+        });
+    }
+
+    /**
+     * 写入缓存，同时在头部记录过期时间和重建耗时，用于概率提前过期
+     */
+    private void setWithRecompute(String key, Object value, Long time, TimeUnit timeUnit, long recomputeMillis) {
+        long millis = jitterMillis(key, timeUnit.toMillis(time));
+        byte[] raw = serializer.serialize(value, System.currentTimeMillis() + millis,
+                (int) Math.min(Math.max(recomputeMillis, 1), Integer.MAX_VALUE));
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+            writeRaw(connection, key, raw, millis);
+            return null;
+        });
     }
 
     public void setWithLogicalExpire(String key, Object value, Long time, TimeUnit timeUnit) {
-        // 设置逻辑过期对象
-        RedisData redisData = new RedisData();
-        redisData.setData(value);
-        redisData.setExpireTime(LocalDateTime.now().plusSeconds(timeUnit.toSeconds(time)));
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData), time, timeUnit);
+        // 设置逻辑过期对象，过期时间写在头部，Redis中不设置过期时间，由逻辑过期负责重建
+        long expireMillis = System.currentTimeMillis() + jitterMillis(key, timeUnit.toMillis(time));
+        byte[] raw = serializer.serialize(value, expireMillis);
+        stringRedisTemplate.execute((RedisCallback<Object>) connection -> connection.set(rawKey(key), raw));
+    }
+
+    private byte[] get(String key) {
+        return stringRedisTemplate.execute((RedisCallback<byte[]>) connection -> connection.get(rawKey(key)));
+    }
+
+    private static byte[] rawKey(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
     }
 
     public <R, ID> R queryWithPassThrough(String keyPrefix,
@@ -48,31 +458,340 @@ public class CacheClient {
                                           Function<ID, R> dbFallback,
                                           Long time, TimeUnit timeUnit) {
         String key = keyPrefix.concat(String.valueOf(id));
-        // 1.从redis中去查
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判空(有数据的时候才是true，""就是false)
-        if (StrUtil.isNotBlank(json)) {
-            // 3.存在，直接返回
-            return JSONUtil.toBean(json, type);
-        }
-        // 命中的是否是空值（此时如果是""）
-        if (!ObjectUtils.isEmpty(json)) {
-            // 返回错误信息
+        // 1.从本地缓存和redis中去查
+        Object cached = getCached(keyPrefix, key, id, type);
+        if (cached != null) {
+            // 2.命中，空值返回null
+            return cached == NULL_VALUE ? null : type.cast(cached);
+        }
+        // 3.不存在查库，同一个key并发未命中时只有一个线程查库，其它线程共享结果
+        return singleFlight(key, () -> loadFromDb(keyPrefix, key, id, dbFallback, time, timeUnit));
+    }
+
+    /**
+     * 概率提前过期（XFetch）：缓存记录了过期时间expiry和重建耗时delta，读取时满足
+     * now - delta * beta * ln(rand) >= expiry 就提前重建，越接近过期、重建越慢，提前重建的概率越大，
+     * 同一批写入的key不会在同一时刻集中过期
+     */
+    public <R, ID> R queryWithEarlyExpire(String keyPrefix,
+                                          ID id, Class<R> type,
+                                          Function<ID, R> dbFallback,
+                                          Long time, TimeUnit timeUnit) {
+        String key = keyPrefix.concat(String.valueOf(id));
+        // 1.先查本地缓存
+        Object value = getLocal(keyPrefix, key);
+        if (value != null) {
+            return value == NULL_VALUE ? null : type.cast(value);
+        }
+        // 布隆过滤器判断id一定不存在
+        if (!cacheBloomFilter.mightContain(keyPrefix, id)) {
+            return null;
+        }
+        // 2.从redis中去查
+        byte[] raw = readRaw(key);
+        if (raw != null) {
+            if (serializer.isNull(raw)) {
+                putLocal(keyPrefix, key, null);
+                return null;
+            }
+            R r = serializer.deserialize(raw, type);
+            if (!shouldRecomputeEarly(raw)) {
+                putLocal(keyPrefix, key, r);
+                return r;
+            }
+        }
+        // 3.未命中或提前重建，同一个key只有一个线程查库
+        return singleFlight(key, () -> loadFromDb(keyPrefix, key, id, dbFallback, time, timeUnit));
+    }
+
+    /**
+     * 查询缓存数据的JSON，直接拼接到响应中，命中时不创建对象
+     * <p>
+     * 先查本地渲染好的JSON；Redis命中Smile编码的数据时逐个token转成JSON；
+     * 其它情况按照 queryWithEarlyExpire 查询后再渲染
+     *
+     * @return JSON字节，null代表不存在
+     */
+    public <R, ID> byte[] queryJson(String keyPrefix,
+                                    ID id, Class<R> type,
+                                    Function<ID, R> dbFallback,
+                                    Long time, TimeUnit timeUnit) {
+        String key = keyPrefix.concat(String.valueOf(id));
+        // 1.先查本地渲染好的JSON
+        Cache<String, byte[]> localJsonCache = localJsonCaches.get(keyPrefix);
+        if (localJsonCache != null) {
+            byte[] json = localJsonCache.getIfPresent(key);
+            if (json != null) {
+                hotKeyDetector.record(key);
+                return json == NULL_JSON ? null : json;
+            }
+        }
+        // 2.Redis命中时直接转成JSON
+        byte[] json = null;
+        byte[] raw = readRaw(key);
+        if (raw != null && serializer.isNull(raw)) {
+            hotKeyDetector.record(key);
+        } else {
+            if (raw != null && !shouldRecomputeEarly(raw)) {
+                hotKeyDetector.record(key);
+                json = serializer.toJson(raw);
+            }
+            // 3.未命中、需要提前重建或者不支持转换，查询对象后再渲染
+            if (json == null) {
+                R r = queryWithEarlyExpire(keyPrefix, id, type, dbFallback, time, timeUnit);
+                json = r == null ? null : serializer.toJson(r);
+            }
+        }
+        if (localJsonCache != null) {
+            localJsonCache.put(key, json == null ? NULL_JSON : json);
+        }
+        return json;
+    }
+
+    private boolean shouldRecomputeEarly(byte[] raw) {
+        int delta = serializer.recomputeMillis(raw);
+        if (delta <= 0) {
+            // 没有记录重建耗时，等Redis过期
+            return false;
+        }
+        // 1 - nextDouble() 取值 (0, 1]，-ln(rand) >= 0
+        double gap = -delta * xfetchBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        return System.currentTimeMillis() + gap >= serializer.expireMillis(raw);
+    }
+
+    /**
+     * 互斥锁解决缓存击穿：本节点内用single-flight合并查库，节点之间再用Redis互斥锁，
+     * 没抢到锁的节点订阅重建完成的通知，不用休眠轮询
+     */
+    public <R, ID> R queryWithMutex(String keyPrefix,
+                                    ID id, Class<R> type,
+                                    Function<ID, R> dbFallback,
+                                    Long time, TimeUnit timeUnit) {
+        String key = keyPrefix.concat(String.valueOf(id));
+        // 1.从本地缓存和redis中去查
+        Object cached = getCached(keyPrefix, key, id, type);
+        if (cached != null) {
+            return cached == NULL_VALUE ? null : type.cast(cached);
+        }
+        // 2.本节点只有一个线程去竞争Redis互斥锁
+        return singleFlight(key, () -> {
+            String lockKey = LOCK_CACHE_KEY + key;
+            while (true) {
+                // 2.1 先登记等待，避免错过重建完成的通知
+                CompletableFuture<Void> loaded = loadedWaiters.computeIfAbsent(key, k -> new CompletableFuture<>());
+                if (tryLock(lockKey)) {
+                    try {
+                        // 2.2 获取锁成功再次检查缓存，做doubleCheck
+                        Object value = getCached(keyPrefix, key, id, type);
+                        if (value != null) {
+                            return value == NULL_VALUE ? null : type.cast(value);
+                        }
+                        // 2.3 查库重建缓存
+                        return loadFromDb(keyPrefix, key, id, dbFallback, time, timeUnit);
+                    } finally {
+                        // 2.4 释放锁，通知其它节点重建完成
+                        unLock(lockKey);
+                        stringRedisTemplate.convertAndSend(CACHE_LOADED_CHANNEL, key);
+                    }
+                }
+                // 2.5 没抢到锁，等待重建完成的通知，超时后重试，防止持有锁的节点宕机
+                try {
+                    loaded.get(LOCK_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (TimeoutException ignored) {
+                    // 超时重新检查缓存并抢锁
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException(e);
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+                Object value = getCached(keyPrefix, key, id, type);
+                if (value != null) {
+                    return value == NULL_VALUE ? null : type.cast(value);
+                }
+            }
+        });
+    }
+
+    /**
+     * 批量查询：一次MGET查Redis，未命中的id一次查库，再用pipeline一次写回
+     *
+     * @param batchDbFallback 根据未命中的id批量查库，返回 id -> 对象
+     * @return 与ids顺序一致，不存在的id对应null
+     */
+    public <R, ID> List<R> queryBatch(String keyPrefix,
+                                      List<ID> ids, Class<R> type,
+                                      Function<List<ID>, Map<ID, R>> batchDbFallback,
+                                      Long time, TimeUnit timeUnit) {
+        List<R> result = new ArrayList<>(Collections.nCopies(ids.size(), null));
+        if (ids.isEmpty()) {
+            return result;
+        }
+        // 1.先查本地缓存，记录需要查Redis的位置
+        List<Integer> redisIndexes = new ArrayList<>(ids.size());
+        List<String> redisKeys = new ArrayList<>(ids.size());
+        for (int i = 0; i < ids.size(); i++) {
+            String key = keyPrefix.concat(String.valueOf(ids.get(i)));
+            Object value = getLocal(keyPrefix, key);
+            if (value == null) {
+                redisIndexes.add(i);
+                redisKeys.add(key);
+            } else if (value != NULL_VALUE) {
+                result.set(i, type.cast(value));
+            }
+        }
+        if (redisKeys.isEmpty()) {
+            return result;
+        }
+        // 2.一次MGET查Redis
+        List<byte[]> raws = readRawBatch(keyPrefix, redisKeys);
+        Map<ID, List<Integer>> missIndexes = new LinkedHashMap<>();
+        for (int i = 0; i < redisIndexes.size(); i++) {
+            int index = redisIndexes.get(i);
+            byte[] raw = raws == null ? null : raws.get(i);
+            if (raw == null) {
+                missIndexes.computeIfAbsent(ids.get(index), k -> new ArrayList<>(1)).add(index);
+            } else if (serializer.isNull(raw)) {
+                // 命中空值
+                putLocal(keyPrefix, redisKeys.get(i), null);
+            } else {
+                R r = serializer.deserialize(raw, type);
+                putLocal(keyPrefix, redisKeys.get(i), r);
+                result.set(index, r);
+            }
+        }
+        if (missIndexes.isEmpty()) {
+            return result;
+        }
+        // 3.未命中的id一次查库
+        Map<ID, R> loaded = batchDbFallback.apply(new ArrayList<>(missIndexes.keySet()));
+        // 4.用pipeline一次写回Redis，不存在的id写入空值
+        long millis = timeUnit.toMillis(time);
+        long nullMillis = TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            missIndexes.forEach((id, indexes) -> {
+                String key = keyPrefix.concat(String.valueOf(id));
+                R r = loaded == null ? null : loaded.get(id);
+                if (r == null) {
+                    writeRaw(connection, key, new byte[0], nullMillis);
+                } else {
+                    long ttl = jitterMillis(key, millis);
+                    writeRaw(connection, key, serializer.serialize(r, System.currentTimeMillis() + ttl), ttl);
+                }
+                putLocal(keyPrefix, key, r);
+                indexes.forEach(index -> result.set(index, r));
+            });
+            return null;
+        });
+        return result;
+    }
+
+    /**
+     * 批量读取缓存，按桶存储时用pipeline执行HGET
+     */
+    @SuppressWarnings("unchecked")
+    private List<byte[]> readRawBatch(String keyPrefix, List<String> keys) {
+        if (!bucketConfigs.containsKey(keyPrefix)) {
+            byte[][] rawKeys = keys.stream().map(CacheClient::rawKey).toArray(byte[][]::new);
+            return stringRedisTemplate.execute((RedisCallback<List<byte[]>>) connection -> connection.mGet(rawKeys));
+        }
+        // 结果不经过字符串序列化，保留原始字节
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                BucketSlot slot = bucketSlot(key);
+                if (slot == null) {
+                    connection.get(rawKey(key));
+                } else {
+                    connection.hGet(slot.key, slot.field);
+                }
+            }
+            return null;
+        }, (RedisSerializer<Object>) null);
+        List<byte[]> raws = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] value = (byte[]) values.get(i);
+            raws.add(bucketSlot(keys.get(i)) == null ? value : unwrapBucketValue(value));
+        }
+        return raws;
+    }
+
+    /**
+     * 依次查本地缓存、布隆过滤器和Redis
+     *
+     * @return null：未命中 NULL_VALUE：命中空值或id一定不存在 其它：缓存的对象
+     */
+    private <R, ID> Object getCached(String keyPrefix, String key, ID id, Class<R> type) {
+        // 1.先查本地缓存
+        Object value = getLocal(keyPrefix, key);
+        if (value != null) {
+            return value;
+        }
+        // 布隆过滤器判断id一定不存在，不再查Redis和数据库，也不写空值
+        if (!cacheBloomFilter.mightContain(keyPrefix, id)) {
+            return NULL_VALUE;
+        }
+        // 2.从redis中去查
+        byte[] raw = readRaw(key);
+        if (raw == null) {
             return null;
         }
-        // 4.不存在查库
+        // 3.命中的是否是空值
+        if (serializer.isNull(raw)) {
+            putLocal(keyPrefix, key, null);
+            return NULL_VALUE;
+        }
+        // 存在，直接返回
+        R r = serializer.deserialize(raw, type);
+        putLocal(keyPrefix, key, r);
+        return r;
+    }
+
+    private <R, ID> R loadFromDb(String keyPrefix, String key, ID id,
+                                 Function<ID, R> dbFallback,
+                                 Long time, TimeUnit timeUnit) {
+        long begin = System.currentTimeMillis();
         R r = dbFallback.apply(id);
         if (ObjectUtils.isEmpty(r)) {
             // 将空值写入redis
-            stringRedisTemplate.opsForValue().set(key, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            stringRedisTemplate.execute((RedisCallback<Object>) connection -> {
+                writeRaw(connection, key, new byte[0], TimeUnit.MINUTES.toMillis(CACHE_NULL_TTL));
+                return null;
+            });
+            putLocal(keyPrefix, key, null);
             return null;
         }
-        // 5.存在存入redis
-        this.set(key, r, time, timeUnit);
-        // 根据情况返回 shop
+        // 存在存入redis，记录重建耗时
+        setWithRecompute(key, r, time, timeUnit, System.currentTimeMillis() - begin);
+        putLocal(keyPrefix, key, r);
         return r;
     }
 
+    /**
+     * 同一个key同时只有一个线程执行loader，其它线程等待同一个CompletableFuture的结果
+     */
+    @SuppressWarnings("unchecked")
+    private <R> R singleFlight(String key, Supplier<R> loader) {
+        CompletableFuture<Object> future = new CompletableFuture<>();
+        CompletableFuture<Object> inFlight = inFlightLoads.putIfAbsent(key, future);
+        if (inFlight != null) {
+            // 已经有线程在加载，等待它的结果
+            try {
+                return (R) inFlight.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        try {
+            R r = loader.get();
+            future.complete(r);
+            return r;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(key, future);
+        }
+    }
 
     public <R, ID> R queryWithLogicalExpire(String keyPrefix,
                                             ID id,
@@ -80,53 +799,175 @@ public class CacheClient {
                                             Function<ID, R> dbFallback,
                                             Long time, TimeUnit timeUnit) {
         String key = keyPrefix.concat(String.valueOf(id));
+        // 0.先查本地缓存，本地缓存中只放未逻辑过期的数据
+        Object value = getLocal(keyPrefix, key);
+        if (value != null && value != NULL_VALUE) {
+            RefreshTask task = refreshTasks.get(key);
+            if (task != null) {
+                task.lastAccessMillis = System.currentTimeMillis();
+            }
+            return type.cast(value);
+        }
         // 1.从redis中去查
-        String json = stringRedisTemplate.opsForValue().get(key);
-        // 2.判空(有商铺数据的时候才是true，""就是false)
-        if (StrUtil.isBlank(json)) {
+        byte[] raw = get(key);
+        // 2.判空
+        if (raw == null || serializer.isNull(raw)) {
             // 不存在直接返回null
             return null;
         }
         // 3.命中反序列化对象
-        RedisData redisData = JSONUtil.toBean(json, RedisData.class);
-        R r = JSONUtil.toBean((JSONObject) redisData.getData(), type);
-        LocalDateTime expireTime = redisData.getExpireTime();
-        // 4.判断是否过期
-        if (expireTime.isAfter(LocalDateTime.now())) {
-            // 4.1 未过期 直接返回
+        R r = serializer.deserializeLogical(raw, type);
+        // 4.登记访问，快过期时由后台提前刷新
+        long expireMillis = serializer.expireMillis(raw);
+        RefreshTask task = track(key, () -> dbFallback.apply(id), time, timeUnit, expireMillis);
+        // 5.判断是否过期，过期时间在头部，不需要解码数据
+        if (expireMillis > System.currentTimeMillis()) {
+            // 5.1 未过期 直接返回
+            putLocal(keyPrefix, key, r);
             return r;
         }
-        // 4.2 已过期 缓存重建
-        boolean isLock = tryLock(LOCK_SHOP_KEY + id);
-        // 5 缓存重建
-        // 5.1 获取互斥锁
-        // 5.2 判断是否成功
-        if (isLock) {
-            json = stringRedisTemplate.opsForValue().get(key);
-            if (StrUtil.isNotBlank(json)) {
-                // 3.存在，直接返回
-                redisData = JSONUtil.toBean(json, RedisData.class);
-                return JSONUtil.toBean((JSONObject) redisData.getData(), type);
-            }
-            // 5.3 成功，开启独立线程实现缓存重建
-            CompletableFuture.runAsync(() -> {
+        // 5.2 已过期 提交重建，返回过期的信息
+        submitRefresh(key, task);
+        return r;
+    }
+
+    /**
+     * 登记逻辑过期key的访问，超过上限时不再登记新的key，只在过期后重建
+     */
+    private RefreshTask track(String key, Supplier<Object> loader,
+                              Long time, TimeUnit timeUnit, long expireMillis) {
+        RefreshTask task = refreshTasks.get(key);
+        if (task == null) {
+            task = new RefreshTask(loader, timeUnit.toMillis(time));
+            if (refreshTasks.size() < refreshMaxTrackedKeys) {
+                RefreshTask old = refreshTasks.putIfAbsent(key, task);
+                task = old == null ? task : old;
+            }
+        }
+        task.lastAccessMillis = System.currentTimeMillis();
+        task.expireMillis = expireMillis;
+        return task;
+    }
+
+    /**
+     * 定期扫描：最近被访问且快过期的key提前刷新，长时间没有访问的key不再跟踪
+     */
+    private void scanRefreshTasks() {
+        long now = System.currentTimeMillis();
+        refreshTasks.forEach((key, task) -> {
+            if (now - task.lastAccessMillis > refreshAccessWindowMillis) {
+                refreshTasks.remove(key, task);
+            } else if (task.expireMillis - now <= refreshAheadMillis) {
+                submitRefresh(key, task);
+            }
+        });
+    }
+
+    /**
+     * 提交刷新，同一个key同时只排队一次，队列满时放弃本次刷新，下次读取或扫描时再提交
+     */
+    private void submitRefresh(String key, RefreshTask task) {
+        if (!pendingRefreshes.add(key)) {
+            return;
+        }
+        try {
+            refreshExecutor.execute(() -> {
                 try {
-                    // 查数据库
-                    R r1 = dbFallback.apply(id);
-                    // 写redis
-                    this.setWithLogicalExpire(key, r1, time, timeUnit);
-                } catch (Exception e) {
-                    throw new RuntimeException(e);
+                    refresh(key, task);
                 } finally {
-                    //释放锁
-                    unLock(key);
+                    pendingRefreshes.remove(key);
                 }
             });
+        } catch (RejectedExecutionException e) {
+            pendingRefreshes.remove(key);
+            long rejected = refreshRejected.incrementAndGet();
+            log.warn("缓存刷新队列已满，放弃刷新：" + key + "，累计拒绝" + rejected + "次");
         }
-        // 5.4 返回过期的信息
-        return r;
     }
 
+    private void refresh(String key, RefreshTask task) {
+        // 1.获取互斥锁，同一时间只有一个节点刷新
+        String lockKey = LOCK_CACHE_KEY + key;
+        if (!tryLock(lockKey)) {
+            return;
+        }
+        try {
+            // 2.获取锁成功再次检查，其它节点可能刚刷新过
+            byte[] raw = get(key);
+            if (raw != null && !serializer.isNull(raw)
+                    && serializer.expireMillis(raw) - System.currentTimeMillis() > refreshAheadMillis) {
+                task.expireMillis = serializer.expireMillis(raw);
+                return;
+            }
+            // 3.查数据库，写redis
+            Object value = task.loader.get();
+            setWithLogicalExpire(key, value, task.ttlMillis, TimeUnit.MILLISECONDS);
+            task.expireMillis = System.currentTimeMillis() + task.ttlMillis;
+            refreshCompleted.incrementAndGet();
+            // 4.通知所有节点删除本地缓存中的旧数据
+            evictLocal(key);
+            stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+        } catch (Exception e) {
+            log.error("缓存刷新失败：" + key, e);
+        } finally {
+            // 5.释放锁
+            unLock(lockKey);
+        }
+    }
+
+    /**
+     * 刷新线程池的运行情况
+     */
+    public Map<String, Object> refreshStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("trackedKeys", refreshTasks.size());
+        stats.put("pending", pendingRefreshes.size());
+        stats.put("queued", refreshExecutor.getQueue().size());
+        stats.put("active", refreshExecutor.getActiveCount());
+        stats.put("completed", refreshCompleted.get());
+        stats.put("rejected", refreshRejected.get());
+        return stats;
+    }
+
+    private static final class BucketConfig {
+        private final int size;
+        private final long ttlMillis;
+
+        private BucketConfig(int size, long ttlMillis) {
+            this.size = size;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+
+    /**
+     * key所在的桶和字段
+     */
+    private static final class BucketSlot {
+        private final byte[] key;
+        private final byte[] field;
+        private final long ttlMillis;
+
+        private BucketSlot(byte[] key, byte[] field, long ttlMillis) {
+            this.key = key;
+            this.field = field;
+            this.ttlMillis = ttlMillis;
+        }
+    }
+
+    /**
+     * 逻辑过期key的刷新信息
+     */
+    private static final class RefreshTask {
+        private final Supplier<Object> loader;
+        private final long ttlMillis;
+        private volatile long lastAccessMillis;
+        private volatile long expireMillis;
+
+        private RefreshTask(Supplier<Object> loader, long ttlMillis) {
+            this.loader = loader;
+            this.ttlMillis = ttlMillis;
+        }
+    }
 
     private boolean tryLock(String key) {
         Boolean flag = stringRedisTemplate.opsForValue().setIfAbsent(key, "1", LOCK_SHOP_TTL, TimeUnit.SECONDS);
@@ -0,0 +1,31 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+
+/**
+ * 缓存值的编解码器，CacheClient通过它把对象写入Redis
+ * <p>
+ * 每种编解码器有唯一的id，写在缓存值的头部，切换编解码器后已有的缓存仍然可以读取
+ */
+public interface CacheCodec {
+
+    /**
+     * 编解码器id，取值 0~15
+     */
+    byte id();
+
+    byte[] encode(Object value);
+
+    <T> T decode(byte[] bytes, Class<T> type);
+
+    /**
+     * 不创建对象，直接把数据转成JSON写入generator
+     *
+     * @return 不支持转换时返回false
+     */
+    default boolean writeJson(byte[] bytes, JsonGenerator generator) throws IOException {
+        return false;
+    }
+}
@@ -0,0 +1,259 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONObject;
+import cn.hutool.json.JSONUtil;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.Resource;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 缓存值的存储格式
+ * <pre>
+ * | 魔数 1B | 标记 1B | 过期时间 8B | [重建耗时 4B] | [原始长度 4B] | 数据 |
+ * </pre>
+ * 标记的第0位表示是否压缩，第1位表示是否记录了重建耗时，高4位是编解码器id；
+ * 过期时间为毫秒时间戳，0代表没有逻辑过期。过期时间在固定位置，不需要解码数据就能判断是否过期。
+ * 不以魔数开头的值是旧的JSON格式，仍然按照JSON读取，空值代表缓存的空对象
+ */
+@Component
+public class CacheValueSerializer {
+
+    private static final byte MAGIC = (byte) 0xC5;
+    private static final int FLAG_COMPRESSED = 1;
+    private static final int FLAG_RECOMPUTE = 2;
+    private static final int HEADER_LENGTH = 10;
+
+    /**
+     * 写入使用的编解码器 smile：二进制 json：文本
+     */
+    @Value("${cache.codec.type:smile}")
+    private String codecType;
+
+    /**
+     * 超过该字节数的数据压缩后再写入
+     */
+    @Value("${cache.codec.compress-threshold:1024}")
+    private int compressThreshold;
+
+    /**
+     * 接口返回JSON使用的ObjectMapper
+     */
+    @Resource
+    private ObjectMapper objectMapper;
+
+    /**
+     * 带有 spring.jackson.* 配置的builder，每次注入都是新的实例
+     */
+    @Resource
+    private Jackson2ObjectMapperBuilder jackson2ObjectMapperBuilder;
+
+    private final Map<Byte, CacheCodec> codecs = new HashMap<>();
+
+    private CacheCodec writeCodec;
+
+    @PostConstruct
+    private void init() {
+        register(new SmileCacheCodec(jackson2ObjectMapperBuilder.factory(new SmileFactory()).build()));
+        register(new JsonCacheCodec());
+        writeCodec = "json".equals(codecType) ? codecs.get(JsonCacheCodec.ID) : codecs.get(SmileCacheCodec.ID);
+    }
+
+    private void register(CacheCodec codec) {
+        codecs.put(codec.id(), codec);
+    }
+
+    /**
+     * @param expireMillis 逻辑过期时间，0代表没有逻辑过期
+     */
+    public byte[] serialize(Object value, long expireMillis) {
+        return serialize(value, expireMillis, -1);
+    }
+
+    /**
+     * @param expireMillis    过期时间
+     * @param recomputeMillis 重建耗时（毫秒），小于0代表不记录
+     */
+    public byte[] serialize(Object value, long expireMillis, int recomputeMillis) {
+        byte[] payload = writeCodec.encode(value);
+        boolean compressed = payload.length > compressThreshold;
+        boolean recompute = recomputeMillis >= 0;
+        int originalLength = payload.length;
+        if (compressed) {
+            payload = compress(payload);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_LENGTH + (recompute ? 4 : 0) + (compressed ? 4 : 0) + payload.length);
+        buffer.put(MAGIC);
+        buffer.put((byte) (writeCodec.id() << 4 | (compressed ? FLAG_COMPRESSED : 0) | (recompute ? FLAG_RECOMPUTE : 0)));
+        buffer.putLong(expireMillis);
+        if (recompute) {
+            buffer.putInt(recomputeMillis);
+        }
+        if (compressed) {
+            buffer.putInt(originalLength);
+        }
+        buffer.put(payload);
+        return buffer.array();
+    }
+
+    /**
+     * 是否是缓存的空值
+     */
+    public boolean isNull(byte[] raw) {
+        return raw.length == 0;
+    }
+
+    /**
+     * 读取逻辑过期时间，不解码数据
+     */
+    public long expireMillis(byte[] raw) {
+        if (raw[0] == MAGIC) {
+            return ByteBuffer.wrap(raw, 2, 8).getLong();
+        }
+        // 旧的JSON格式 RedisData
+        RedisData redisData = JSONUtil.toBean(new String(raw, StandardCharsets.UTF_8), RedisData.class);
+        return redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * 读取重建耗时，没有记录时返回0
+     */
+    public int recomputeMillis(byte[] raw) {
+        if (raw[0] != MAGIC || (raw[1] & FLAG_RECOMPUTE) == 0) {
+            return 0;
+        }
+        return ByteBuffer.wrap(raw, HEADER_LENGTH, 4).getInt();
+    }
+
+    public <T> T deserialize(byte[] raw, Class<T> type) {
+        if (raw[0] != MAGIC) {
+            // 旧的JSON格式
+            return JSONUtil.toBean(new String(raw, StandardCharsets.UTF_8), type);
+        }
+        return decodePayload(raw, type);
+    }
+
+    /**
+     * 读取逻辑过期的数据
+     */
+    public <T> T deserializeLogical(byte[] raw, Class<T> type) {
+        if (raw[0] != MAGIC) {
+            // 旧的JSON格式 RedisData，数据在data字段中
+            RedisData redisData = JSONUtil.toBean(new String(raw, StandardCharsets.UTF_8), RedisData.class);
+            return JSONUtil.toBean((JSONObject) redisData.getData(), type);
+        }
+        return decodePayload(raw, type);
+    }
+
+    /**
+     * 不创建对象，直接把缓存的数据转成接口返回的JSON
+     *
+     * @return 旧的JSON格式或编解码器不支持时返回null
+     */
+    public byte[] toJson(byte[] raw) {
+        if (raw[0] != MAGIC) {
+            return null;
+        }
+        CacheCodec codec = codec(raw);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length * 2);
+        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(out)) {
+            if (!codec.writeJson(payload(raw), generator)) {
+                return null;
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存转换JSON失败", e);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * 按照接口返回的格式把对象转成JSON
+     */
+    public byte[] toJson(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalStateException("转换JSON失败", e);
+        }
+    }
+
+    private <T> T decodePayload(byte[] raw, Class<T> type) {
+        return codec(raw).decode(payload(raw), type);
+    }
+
+    private CacheCodec codec(byte[] raw) {
+        int flags = raw[1] & 0xFF;
+        CacheCodec codec = codecs.get((byte) (flags >> 4));
+        if (codec == null) {
+            throw new IllegalStateException("未知的缓存编解码器：" + (flags >> 4));
+        }
+        return codec;
+    }
+
+    private static byte[] payload(byte[] raw) {
+        int flags = raw[1] & 0xFF;
+        int offset = (flags & FLAG_RECOMPUTE) != 0 ? HEADER_LENGTH + 4 : HEADER_LENGTH;
+        byte[] payload;
+        if ((flags & FLAG_COMPRESSED) != 0) {
+            int originalLength = ByteBuffer.wrap(raw, offset, 4).getInt();
+            payload = decompress(raw, offset + 4, originalLength);
+        } else {
+            payload = new byte[raw.length - offset];
+            System.arraycopy(raw, offset, payload, 0, payload.length);
+        }
+        return payload;
+    }
+
+    private static byte[] compress(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2);
+            byte[] buffer = new byte[4096];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] decompress(byte[] raw, int offset, int originalLength) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(raw, offset, raw.length - offset);
+            byte[] data = new byte[originalLength];
+            int length = 0;
+            while (length < originalLength && !inflater.finished()) {
+                int count = inflater.inflate(data, length, originalLength - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("缓存数据不完整");
+                }
+                length += count;
+            }
+            return data;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("缓存解压失败", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
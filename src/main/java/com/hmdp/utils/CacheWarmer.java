@@ -0,0 +1,300 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.Shop;
+import com.hmdp.entity.ShopType;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IShopService;
+import com.hmdp.service.IShopTypeService;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.domain.Range;
+import org.springframework.data.geo.Point;
+import org.springframework.data.redis.connection.RedisZSetCommands;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.connection.stream.MapRecord;
+import org.springframework.data.redis.connection.stream.PendingMessage;
+import org.springframework.data.redis.connection.stream.PendingMessages;
+import org.springframework.data.redis.connection.stream.StreamInfo;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StreamOperations;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * 启动预热：在应用就绪之前把店铺、店铺坐标、店铺类型和进行中的秒杀库存写入Redis，
+ * 避免发布或Redis故障切换后的前几分钟请求全部打到MySQL
+ * <p>
+ * 按id游标分批读取，每批交给写入线程用pipeline一次写入，写入线程忙时由读取线程自己写，控制内存占用
+ */
+@Slf4j
+@Component
+public class CacheWarmer implements ApplicationRunner {
+
+    @Value("${warmup.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 每批读取和写入的条数
+     */
+    @Value("${warmup.batch-size:500}")
+    private int batchSize;
+
+    /**
+     * 并行写入的线程数
+     */
+    @Value("${warmup.threads:4}")
+    private int threads;
+
+    /**
+     * 店铺写入逻辑过期格式，店铺查询使用 queryWithLogicalExpire 时开启
+     */
+    @Value("${warmup.shop-logical-expire:false}")
+    private boolean shopLogicalExpire;
+
+    @Resource
+    private IShopService shopService;
+
+    @Resource
+    private IShopTypeService shopTypeService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private CacheClient cacheClient;
+
+    @Resource
+    private SeckillStockShards seckillStockShards;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    /**
+     * 预热状态 waiting running done failed
+     */
+    private volatile String state = "waiting";
+
+    private volatile String stage;
+
+    private volatile long beginMillis;
+
+    private volatile long endMillis;
+
+    private final AtomicLong shops = new AtomicLong();
+    private final AtomicLong shopTypes = new AtomicLong();
+    private final AtomicLong seckillVouchers = new AtomicLong();
+
+    @Override
+    public void run(ApplicationArguments args) {
+        if (!enabled) {
+            return;
+        }
+        state = "running";
+        beginMillis = System.currentTimeMillis();
+        ThreadPoolExecutor writers = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads), new NamedThreadFactory("cache-warmup-", true),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        List<Future<?>> futures = new ArrayList<>();
+        try {
+            // 1.店铺
+            stage = "shop";
+            long lastId = 0;
+            while (true) {
+                List<Shop> batch = shopService.query()
+                        .gt("id", lastId).orderByAsc("id").last("limit " + batchSize).list();
+                if (batch.isEmpty()) {
+                    break;
+                }
+                lastId = batch.get(batch.size() - 1).getId();
+                Map<Long, Shop> values = batch.stream()
+                        .collect(Collectors.toMap(Shop::getId, Function.identity(), (a, b) -> a, LinkedHashMap::new));
+                futures.add(writers.submit(() -> {
+                    cacheClient.setBatch(CACHE_SHOP_KEY, values, CACHE_SHOP_TTL, TimeUnit.MINUTES, shopLogicalExpire);
+                    writeShopGeo(batch);
+                    shops.addAndGet(values.size());
+                }));
+                if (batch.size() < batchSize) {
+                    break;
+                }
+            }
+            // 2.店铺类型，全部类型放在一个key中
+            stage = "shop-type";
+            List<ShopType> types = shopTypeService.query().orderByAsc("sort").list();
+            if (!types.isEmpty()) {
+                cacheClient.setBatch(CACHE_SHOP_TYPE_KEY, Collections.singletonMap("all", types),
+                        CACHE_SHOP_TYPE_TTL, TimeUnit.MINUTES, false);
+                shopTypes.addAndGet(types.size());
+            }
+            // 3.未结束的秒杀券库存，只在key不存在时写入，不覆盖正在扣减的库存
+            //   订单异步落库，数据库库存还没有减去消息队列中的订单，写入前减掉，避免Redis库存丢失后超卖
+            stage = "seckill-voucher";
+            Map<Long, Long> unpersisted = unpersistedOrders();
+            lastId = 0;
+            LocalDateTime now = LocalDateTime.now();
+            while (true) {
+                List<SeckillVoucher> batch = seckillVoucherService.query()
+                        .gt("voucher_id", lastId).gt("end_time", now)
+                        .orderByAsc("voucher_id").last("limit " + batchSize).list();
+                if (batch.isEmpty()) {
+                    break;
+                }
+                lastId = batch.get(batch.size() - 1).getVoucherId();
+                futures.add(writers.submit(() -> {
+                    writeSeckillStock(batch, unpersisted);
+                    seckillVouchers.addAndGet(batch.size());
+                }));
+                if (batch.size() < batchSize) {
+                    break;
+                }
+            }
+            // 4.等待所有批次写完
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            state = "done";
+        } catch (Exception e) {
+            // 预热失败不影响启动，缓存未命中时仍会查库
+            state = "failed";
+            log.error("缓存预热失败，阶段：" + stage, e);
+        } finally {
+            writers.shutdownNow();
+            endMillis = System.currentTimeMillis();
+        }
+        log.info("缓存预热" + state + "，店铺" + shops.get() + "条，店铺类型" + shopTypes.get()
+                + "条，秒杀券" + seckillVouchers.get() + "条，耗时" + (endMillis - beginMillis) + "ms");
+    }
+
+    /**
+     * 按类型分组，用pipeline把店铺坐标GEOADD到 shop:geo:{typeId}
+     */
+    private void writeShopGeo(List<Shop> batch) {
+        Map<Long, Map<String, Point>> locations = new HashMap<>();
+        for (Shop shop : batch) {
+            if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+                continue;
+            }
+            locations.computeIfAbsent(shop.getTypeId(), k -> new HashMap<>())
+                    .put(shop.getId().toString(), new Point(shop.getX(), shop.getY()));
+        }
+        if (locations.isEmpty()) {
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            locations.forEach((typeId, points) -> stringConnection.geoAdd(SHOP_GEO_KEY + typeId, points));
+            return null;
+        });
+    }
+
+    /**
+     * 库存 = 数据库库存 - 还没有落库的订单数
+     */
+    private void writeSeckillStock(List<SeckillVoucher> batch, Map<Long, Long> unpersisted) {
+        Map<Long, Integer> stocks = new LinkedHashMap<>();
+        for (SeckillVoucher voucher : batch) {
+            long stock = voucher.getStock() - unpersisted.getOrDefault(voucher.getVoucherId(), 0L);
+            stocks.put(voucher.getVoucherId(), (int) Math.max(stock, 0));
+        }
+        if (seckillStockShards.isEnabled()) {
+            stocks.forEach(seckillStockShards::seedIfAbsent);
+            return;
+        }
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection stringConnection = (StringRedisConnection) connection;
+            stocks.forEach((voucherId, stock) -> stringConnection.setNX(SECKILL_STOCK_KEY + voucherId, stock.toString()));
+            return null;
+        });
+    }
+
+    /**
+     * 每个优惠券还没有落库的订单数：消费者组已投递未ACK的消息，加上还没有投递的消息。
+     * 在读取数据库库存之前统计，统计之后落库的订单会被多减一次，库存只会偏少，不会超卖
+     */
+    private Map<Long, Long> unpersistedOrders() {
+        Map<Long, Long> counts = new HashMap<>();
+        StreamOperations<String, Object, Object> ops = stringRedisTemplate.opsForStream();
+        if (!Boolean.TRUE.equals(stringRedisTemplate.hasKey(SECKILL_ORDER_QUEUE))) {
+            return counts;
+        }
+        // 1.消费者组的投递进度，组还不存在时所有消息都没有投递
+        String lastDeliveredId = "0-0";
+        long pendingCount = 0;
+        for (StreamInfo.XInfoGroup group : ops.groups(SECKILL_ORDER_QUEUE)) {
+            if (SECKILL_ORDER_GROUP.equals(group.groupName())) {
+                lastDeliveredId = group.lastDeliveredId();
+                pendingCount = group.pendingCount();
+            }
+        }
+        // 2.已投递未ACK的消息
+        if (pendingCount > 0) {
+            PendingMessages pending = ops.pending(SECKILL_ORDER_QUEUE, SECKILL_ORDER_GROUP, Range.unbounded(), pendingCount);
+            for (PendingMessage message : pending) {
+                String id = message.getIdAsString();
+                ops.range(SECKILL_ORDER_QUEUE, Range.closed(id, id)).forEach(record -> countOrder(counts, record));
+            }
+        }
+        // 3.还没有投递的消息，从投递进度往后分批读取
+        String cursor = lastDeliveredId;
+        while (true) {
+            List<MapRecord<String, Object, Object>> records = ops.range(SECKILL_ORDER_QUEUE,
+                    Range.rightUnbounded(Range.Bound.inclusive(cursor)), RedisZSetCommands.Limit.limit().count(batchSize + 1));
+            if (records == null || records.isEmpty()) {
+                break;
+            }
+            for (MapRecord<String, Object, Object> record : records) {
+                if (!record.getId().getValue().equals(cursor)) {
+                    countOrder(counts, record);
+                }
+            }
+            if (records.size() <= batchSize) {
+                break;
+            }
+            cursor = records.get(records.size() - 1).getId().getValue();
+        }
+        return counts;
+    }
+
+    private static void countOrder(Map<Long, Long> counts, MapRecord<String, Object, Object> record) {
+        Object voucherId = record.getValue().get("voucherId");
+        if (voucherId != null) {
+            counts.merge(Long.valueOf(voucherId.toString()), 1L, Long::sum);
+        }
+    }
+
+    /**
+     * 预热进度和耗时
+     */
+    public Map<String, Object> progress() {
+        Map<String, Object> progress = new LinkedHashMap<>();
+        progress.put("state", state);
+        progress.put("stage", stage);
+        progress.put("shops", shops.get());
+        progress.put("shopTypes", shopTypes.get());
+        progress.put("seckillVouchers", seckillVouchers.get());
+        long end = endMillis == 0 ? System.currentTimeMillis() : endMillis;
+        progress.put("durationMillis", beginMillis == 0 ? 0 : end - beginMillis);
+        return progress;
+    }
+}
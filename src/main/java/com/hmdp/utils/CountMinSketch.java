@@ -0,0 +1,61 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Count-Min Sketch：用固定大小的计数矩阵估算每个key的访问次数，只会高估不会低估
+ * <p>
+ * 每一行的位置用64位MurmurHash双重哈希计算 g(i) = h1 + i * h2，String.hashCode相同的key在各行中也不会都碰撞
+ */
+public class CountMinSketch {
+
+    private static final int DEPTH = 4;
+
+    private final int width;
+
+    private final AtomicLongArray[] rows;
+
+    public CountMinSketch(int width) {
+        this.width = width;
+        this.rows = new AtomicLongArray[DEPTH];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new AtomicLongArray(width);
+        }
+    }
+
+    public void add(String key, long count) {
+        long hash = MurmurHash.hash64(key);
+        for (int i = 0; i < rows.length; i++) {
+            rows[i].addAndGet(index(hash, i), count);
+        }
+    }
+
+    /**
+     * 估算访问次数，取每一行的最小值
+     */
+    public long estimate(String key) {
+        long hash = MurmurHash.hash64(key);
+        long min = Long.MAX_VALUE;
+        for (int i = 0; i < rows.length; i++) {
+            min = Math.min(min, rows[i].get(index(hash, i)));
+        }
+        return min;
+    }
+
+    public void clear() {
+        for (AtomicLongArray row : rows) {
+            for (int i = 0; i < width; i++) {
+                row.set(i, 0);
+            }
+        }
+    }
+
+    private int index(long hash, int row) {
+        int hash1 = (int) hash;
+        int hash2 = (int) (hash >>> 32);
+        int combinedHash = hash1 + (row + 1) * hash2;
+        return (combinedHash & Integer.MAX_VALUE) % width;
+    }
+}
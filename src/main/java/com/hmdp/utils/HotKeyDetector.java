@@ -0,0 +1,316 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.HOT_KEY;
+import static com.hmdp.utils.RedisConstants.HOT_KEY_NODES;
+
+/**
+ * 热点key探测：对缓存读取抽样计数，超过阈值的key自动提升为本地副本，不再访问Redis
+ * <p>
+ * 本节点用滑动窗口的Count-Min Sketch估算访问量；每个分段结束时把候选key的计数汇总到Redis，
+ * 再读取上一个分段所有节点的汇总结果，得到集群视角的热点key。
+ * 候选key的门槛按存活节点数缩小，均匀分散在N个节点上的集群热点，每个节点的访问量约为集群阈值的1/N，也能被上报
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    /**
+     * 每个分段最多上报的候选key数
+     */
+    private static final int MAX_CANDIDATES = 1000;
+
+    private static final int SKETCH_WIDTH = 4096;
+
+    /**
+     * 抽样比例，每N次访问记录一次
+     */
+    @Value("${hotkey.sample-rate:10}")
+    private int sampleRate;
+
+    /**
+     * 滑动窗口每个分段的时长（秒）
+     */
+    @Value("${hotkey.segment-seconds:10}")
+    private int segmentSeconds;
+
+    /**
+     * 滑动窗口的分段数
+     */
+    @Value("${hotkey.segments:6}")
+    private int segments;
+
+    /**
+     * 本节点QPS超过该值即为热点key
+     */
+    @Value("${hotkey.local-qps:500}")
+    private long localQps;
+
+    /**
+     * 集群QPS超过该值即为热点key
+     */
+    @Value("${hotkey.cluster-qps:2000}")
+    private long clusterQps;
+
+    /**
+     * 本地副本的过期时间（秒）
+     */
+    @Value("${hotkey.replica-ttl-seconds:2}")
+    private long replicaTtl;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private CountMinSketch[] sketches;
+
+    /**
+     * 本节点的标识，每个分段在 hotkey:nodes 中登记，用于统计存活节点数
+     */
+    private final String nodeId = UUID.randomUUID().toString();
+
+    private volatile long liveNodes = 1;
+
+    private volatile int current;
+
+    /**
+     * 本分段访问量较大、需要上报集群的候选key
+     */
+    private final Set<String> candidates = ConcurrentHashMap.newKeySet();
+
+    /**
+     * 已提升的热点key
+     */
+    private final Map<String, HotKey> hotKeys = new ConcurrentHashMap<>();
+
+    /**
+     * 集群视角的热点key
+     */
+    private volatile Set<String> clusterHotKeys = Collections.emptySet();
+
+    private Cache<String, Object> replicas;
+
+    private final AtomicLong promotions = new AtomicLong();
+    private final AtomicLong demotions = new AtomicLong();
+
+    private ScheduledExecutorService rotateExecutor;
+
+    @PostConstruct
+    private void init() {
+        sketches = new CountMinSketch[segments];
+        for (int i = 0; i < segments; i++) {
+            sketches[i] = new CountMinSketch(SKETCH_WIDTH);
+        }
+        replicas = Caffeine.newBuilder()
+                .maximumSize(MAX_CANDIDATES)
+                .expireAfterWrite(replicaTtl, TimeUnit.SECONDS)
+                .build();
+        rotateExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("hot-key-", true));
+        rotateExecutor.scheduleAtFixedRate(this::rotate, segmentSeconds, segmentSeconds, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        rotateExecutor.shutdownNow();
+    }
+
+    /**
+     * 记录一次访问，按比例抽样
+     */
+    public void record(String key) {
+        if (ThreadLocalRandom.current().nextInt(sampleRate) != 0) {
+            return;
+        }
+        sketches[current].add(key, 1);
+        long qps = estimateQps(key);
+        if (qps >= candidateQps() && candidates.size() < MAX_CANDIDATES) {
+            // 访问量较大，作为候选key上报集群
+            candidates.add(key);
+        }
+        if (qps >= localQps && !hotKeys.containsKey(key)) {
+            promote(key, "local", qps);
+        }
+    }
+
+    public boolean isHot(String key) {
+        return hotKeys.containsKey(key);
+    }
+
+    /**
+     * 读取热点key的本地副本
+     */
+    public Object getReplica(String key) {
+        return hotKeys.isEmpty() ? null : replicas.getIfPresent(key);
+    }
+
+    /**
+     * 热点key才保存本地副本
+     */
+    public void putReplica(String key, Object value) {
+        if (isHot(key)) {
+            replicas.put(key, value);
+        }
+    }
+
+    public void invalidate(String key) {
+        replicas.invalidate(key);
+    }
+
+    /**
+     * 当前热点key和提升、降级次数
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new HashMap<>(4);
+        List<HotKey> keys = new ArrayList<>(hotKeys.values());
+        keys.forEach(hotKey -> hotKey.setQps(estimateQps(hotKey.getKey())));
+        snapshot.put("hotKeys", keys);
+        snapshot.put("clusterHotKeys", clusterHotKeys);
+        snapshot.put("liveNodes", liveNodes);
+        snapshot.put("candidateQps", candidateQps());
+        snapshot.put("promotions", promotions.get());
+        snapshot.put("demotions", demotions.get());
+        return snapshot;
+    }
+
+    /**
+     * 上报集群的门槛：本节点阈值的1/4，以及集群阈值按存活节点数平分后的一半，取较小的
+     */
+    private long candidateQps() {
+        return Math.max(1, Math.min(localQps / 4, clusterQps / Math.max(liveNodes, 1) / 2));
+    }
+
+    private long estimateQps(String key) {
+        long count = 0;
+        for (CountMinSketch sketch : sketches) {
+            count += sketch.estimate(key);
+        }
+        return count * sampleRate / ((long) segments * segmentSeconds);
+    }
+
+    private void promote(String key, String source, long qps) {
+        HotKey hotKey = new HotKey();
+        hotKey.setKey(key);
+        hotKey.setSource(source);
+        hotKey.setQps(qps);
+        hotKey.setPromotedAt(System.currentTimeMillis());
+        if (hotKeys.putIfAbsent(key, hotKey) == null) {
+            promotions.incrementAndGet();
+            log.info("热点key提升：" + key + "，来源：" + source + "，qps：" + qps);
+        }
+    }
+
+    private void demote(String key, long qps) {
+        if (hotKeys.remove(key) != null) {
+            replicas.invalidate(key);
+            demotions.incrementAndGet();
+            log.info("热点key降级：" + key + "，qps：" + qps);
+        }
+    }
+
+    /**
+     * 分段结束：上报候选key，读取集群热点，滑动窗口前进一格，降级不再热的key
+     */
+    private void rotate() {
+        try {
+            long segmentId = System.currentTimeMillis() / TimeUnit.SECONDS.toMillis(segmentSeconds);
+            liveNodes = heartbeat();
+            reportCandidates(segmentId);
+            clusterHotKeys = loadClusterHotKeys(segmentId - 1);
+        } catch (Exception e) {
+            log.error("热点key集群汇总失败", e);
+        }
+        // 滑动窗口前进一格，清空最旧的分段
+        int next = (current + 1) % segments;
+        sketches[next].clear();
+        current = next;
+        candidates.clear();
+        // 集群热点直接提升
+        Set<String> cluster = clusterHotKeys;
+        cluster.forEach(key -> promote(key, "cluster", estimateQps(key)));
+        // 本节点和集群都不再热的key降级，低于阈值一半才降级，避免反复提升降级
+        hotKeys.keySet().forEach(key -> {
+            long qps = estimateQps(key);
+            if (qps < localQps / 2 && !cluster.contains(key)) {
+                demote(key, qps);
+            }
+        });
+    }
+
+    /**
+     * ZADD hotkey:nodes now nodeId 登记本节点，删除一个窗口内没有登记的节点，返回存活节点数
+     */
+    private long heartbeat() {
+        long now = System.currentTimeMillis();
+        long windowMillis = TimeUnit.SECONDS.toMillis((long) segmentSeconds * segments);
+        List<Object> results = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            byte[] key = HOT_KEY_NODES.getBytes(StandardCharsets.UTF_8);
+            connection.zAdd(key, now, nodeId.getBytes(StandardCharsets.UTF_8));
+            connection.zRemRangeByScore(key, 0, now - windowMillis);
+            connection.zCard(key);
+            return null;
+        });
+        Object count = results.get(2);
+        return count instanceof Number ? Math.max(((Number) count).longValue(), 1) : 1;
+    }
+
+    /**
+     * ZINCRBY hotkey:{segmentId} count key，汇总所有节点在这个分段的访问量，
+     * 计数取本分段sketch的估算值，进入候选之前的访问也计算在内
+     */
+    private void reportCandidates(long segmentId) {
+        if (candidates.isEmpty()) {
+            return;
+        }
+        byte[] reportKey = (HOT_KEY + segmentId).getBytes(StandardCharsets.UTF_8);
+        CountMinSketch sketch = sketches[current];
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            candidates.forEach(key ->
+                    connection.zIncrBy(reportKey, sketch.estimate(key) * sampleRate, key.getBytes(StandardCharsets.UTF_8)));
+            connection.expire(reportKey, (long) segmentSeconds * segments);
+            return null;
+        });
+    }
+
+    private Set<String> loadClusterHotKeys(long segmentId) {
+        Set<String> keys = stringRedisTemplate.opsForZSet()
+                .rangeByScore(HOT_KEY + segmentId, (double) clusterQps * segmentSeconds, Double.MAX_VALUE);
+        return keys == null ? Collections.emptySet() : keys;
+    }
+
+    @Data
+    public static class HotKey {
+        private String key;
+        /**
+         * local：本节点探测 cluster：集群汇总
+         */
+        private String source;
+        private long qps;
+        private long promotedAt;
+    }
+}
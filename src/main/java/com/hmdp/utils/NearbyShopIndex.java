@@ -0,0 +1,162 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.Shop;
+import com.hmdp.mapper.ShopMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import static com.hmdp.utils.RedisConstants.SHOP_INDEX_CHANNEL;
+
+/**
+ * 附近店铺的内存索引，启动时从tb_shop加载，店铺新增或修改后通过Redis发布订阅通知所有节点重新加载该店铺
+ */
+@Slf4j
+@Component
+public class NearbyShopIndex implements ApplicationRunner, MessageListener {
+
+    /**
+     * 每批加载的店铺数
+     */
+    private static final int LOAD_BATCH_SIZE = 1000;
+
+    /**
+     * 网格边长（度）
+     */
+    @Value("${shop.index.cell-degrees:0.01}")
+    private double cellDegrees;
+
+    @Resource
+    private ShopMapper shopMapper;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisConnectionFactory redisConnectionFactory;
+
+    /**
+     * 加载完成前为null
+     */
+    private volatile ShopSpatialIndex index;
+
+    /**
+     * 加载期间收到的店铺变更，替换索引后重新加载，加锁保证替换前后的通知不会丢失
+     */
+    private final Set<Long> pending = new LinkedHashSet<>();
+
+    private RedisMessageListenerContainer container;
+
+    @PostConstruct
+    private void init() {
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener(this, new ChannelTopic(SHOP_INDEX_CHANNEL));
+        container.afterPropertiesSet();
+        container.start();
+    }
+
+    @PreDestroy
+    private void destroy() throws Exception {
+        container.destroy();
+    }
+
+    /**
+     * 按id游标分批加载，建好后再替换，加载期间不影响查询；
+     * 加载期间变更的店铺可能已经读过旧数据，替换后按收到的通知重新加载
+     */
+    @Override
+    public void run(ApplicationArguments args) {
+        long begin = System.currentTimeMillis();
+        ShopSpatialIndex newIndex = new ShopSpatialIndex(cellDegrees);
+        long lastId = 0;
+        while (true) {
+            List<Shop> batch = shopMapper.selectList(new QueryWrapper<Shop>()
+                    .select("id", "type_id", "x", "y", "avg_price", "score")
+                    .gt("id", lastId).orderByAsc("id").last("limit " + LOAD_BATCH_SIZE));
+            batch.forEach(shop -> put(newIndex, shop));
+            if (batch.size() < LOAD_BATCH_SIZE) {
+                break;
+            }
+            lastId = batch.get(batch.size() - 1).getId();
+        }
+        List<Long> changed;
+        synchronized (pending) {
+            index = newIndex;
+            changed = new ArrayList<>(pending);
+            pending.clear();
+        }
+        changed.forEach(id -> reload(newIndex, id));
+        log.info("附近店铺索引加载完成，共" + newIndex.size() + "条，加载期间变更" + changed.size() + "条，耗时"
+                + (System.currentTimeMillis() - begin) + "ms");
+    }
+
+    /**
+     * 通知所有节点重新加载店铺
+     */
+    public void publish(Long shopId) {
+        stringRedisTemplate.convertAndSend(SHOP_INDEX_CHANNEL, shopId.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        long id = Long.parseLong(new String(message.getBody(), StandardCharsets.UTF_8));
+        ShopSpatialIndex current = index;
+        if (current == null) {
+            synchronized (pending) {
+                current = index;
+                if (current == null) {
+                    // 还在加载，记下来替换后再处理
+                    pending.add(id);
+                    return;
+                }
+            }
+        }
+        reload(current, id);
+    }
+
+    private void reload(ShopSpatialIndex current, long id) {
+        Shop shop = shopMapper.selectById(id);
+        if (shop == null) {
+            current.remove(id);
+        } else if (!put(current, shop)) {
+            current.remove(id);
+        }
+    }
+
+    /**
+     * 查询最近的k个符合条件的店铺，索引还没有加载完成时返回空
+     */
+    public List<ShopSpatialIndex.Nearby> nearest(double x, double y, int k, ShopSpatialIndex.Filter filter, double maxRadius) {
+        ShopSpatialIndex current = index;
+        return current == null ? Collections.emptyList() : current.nearest(x, y, k, filter, maxRadius);
+    }
+
+    private static boolean put(ShopSpatialIndex index, Shop shop) {
+        if (shop.getTypeId() == null || shop.getX() == null || shop.getY() == null) {
+            return false;
+        }
+        index.put(shop.getId(), shop.getTypeId(), shop.getX(), shop.getY(),
+                shop.getAvgPrice() == null ? 0 : shop.getAvgPrice(), shop.getScore() == null ? 0 : shop.getScore());
+        return true;
+    }
+}
@@ -11,13 +11,40 @@ public class RedisConstants {
     public static final Long CACHE_SHOP_TTL = 30L;
     public static final String CACHE_SHOP_KEY = "cache:shop:";
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shop_type:list:";
+    public static final Long CACHE_SHOP_TYPE_TTL = 30L;
+    public static final String CACHE_SHOP_PAGE_KEY = "cache:shop_page:";
+    public static final String CACHE_SHOP_PAGE_VERSION_KEY = "cache:shop_page:version:";
+    public static final Long CACHE_SHOP_PAGE_TTL = 10L;
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";
+    public static final String CACHE_LOADED_CHANNEL = "cache:loaded";
+    public static final String CACHE_BLOG_KEY = "cache:blog:";
+    public static final String CACHE_USER_KEY = "cache:user:";
+    public static final Long CACHE_USER_TTL = 30L;
+    public static final String HOT_KEY = "hotkey:";
+    public static final String HOT_KEY_NODES = "hotkey:nodes";
+
+    public static final String BLOOM_KEY = "bloom:";
+    public static final String BLOOM_SWITCH_CHANNEL = "bloom:switch";
+    public static final Long LOCK_BLOOM_TTL = 10L;
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";
     public static final Long LOCK_SHOP_TTL = 10L;
+    public static final String LOCK_CACHE_KEY = "lock:";
 
     public static final String SECKILL_STOCK_KEY = "seckill:stock:";
+    public static final String SECKILL_ORDER_KEY = "seckill:order:";
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";
+    public static final String SECKILL_EPOCH_KEY = "seckill:epoch:";
+    public static final String SECKILL_ORDER_QUEUE = "stream.orders";
+    public static final String SECKILL_ORDER_GROUP = "g1";
+    public static final String ID_WORKER_KEY = "id:worker:";
+    public static final Long ID_WORKER_TTL = 60L;
+
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
+    public static final String FEED_OUTBOX_KEY = "feed:outbox:";
+    public static final String FEED_BIG_AUTHOR_KEY = "feed:big-authors";
     public static final String SHOP_GEO_KEY = "shop:geo:";
+    public static final String SHOP_INDEX_CHANNEL = "shop:index";
     public static final String USER_SIGN_KEY = "sign:";
 }
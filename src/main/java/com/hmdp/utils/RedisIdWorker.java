@@ -1,18 +1,40 @@
 package com.hmdp.utils;
 
+import cn.hutool.core.lang.UUID;
+import cn.hutool.core.thread.NamedThreadFactory;
+import cn.hutool.core.util.RandomUtil;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import javax.annotation.Resource;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_TTL;
 
 /**
  * @description:
  * @author: yangzhitong
  * @time: 2023/5/9 20:59
  */
+@Slf4j
 @Component
 public class RedisIdWorker {
 
@@ -25,22 +47,295 @@ public class RedisIdWorker {
      */
     private static final int COUNT_BITS = 32;
 
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd");
+
+    /**
+     * 号段用到该比例时异步预取下一个号段
+     */
+    private static final double PREFETCH_RATIO = 0.8;
+
+    /**
+     * 当前节点持有机器id租约的标识
+     */
+    private static final String WORKER_TOKEN = UUID.randomUUID().toString(true);
+
+    /**
+     * 租约到期前预留的时间（毫秒），抵消本地与Redis的时钟误差和续期请求的耗时
+     */
+    private static final long LEASE_MARGIN_MILLIS = TimeUnit.SECONDS.toMillis(ID_WORKER_TTL) / 6;
+
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    // 初始化提高性能
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("id_worker_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
     @Resource
     private StringRedisTemplate stringRedisTemplate;
 
+    /**
+     * id生成模式 counter：每次INCR segment：号段模式，INCRBY一次领取一段计数，本地发放
+     * snowflake：雪花算法，启动时从Redis租用机器id，之后生成id不访问网络
+     */
+    @Value("${id.mode:counter}")
+    private String mode;
+
+    /**
+     * 号段模式下每次领取的计数个数
+     */
+    @Value("${id.segment.step:1000}")
+    private int step;
+
+    private final Map<String, SegmentBuffer> segmentBuffers = new ConcurrentHashMap<>();
+
+    private final ExecutorService segmentLoader =
+            Executors.newSingleThreadExecutor(new NamedThreadFactory("id-segment-", true));
+
+    /**
+     * 当天的日期缓存，避免每次生成id都格式化日期
+     */
+    private volatile DateKey today;
+
+    private ScheduledExecutorService leaseRenewer;
+
+    private volatile SnowflakeIdWorker snowflakeIdWorker;
+
+    private volatile String workerKey;
+
+    /**
+     * 机器id租约在本地视角的截止时间，超过后停止发号，避免租约过期被其它节点占用后生成重复id
+     */
+    private volatile long leaseDeadline;
+
+    @PostConstruct
+    private void init() {
+        if (!isSnowflake()) {
+            return;
+        }
+        // 启动时租用机器id，并定期续期
+        leaseWorkerId();
+        leaseRenewer = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("id-worker-lease-", true));
+        leaseRenewer.scheduleWithFixedDelay(this::renewWorkerId, ID_WORKER_TTL / 3, ID_WORKER_TTL / 3, TimeUnit.SECONDS);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        segmentLoader.shutdownNow();
+        if (leaseRenewer != null) {
+            leaseRenewer.shutdownNow();
+            // 租约改为1秒后过期，方便其它节点复用
+            try {
+                stringRedisTemplate.execute(RENEW_SCRIPT, Collections.singletonList(workerKey), WORKER_TOKEN, "1");
+            } catch (Exception e) {
+                log.error("释放机器id租约失败", e);
+            }
+        }
+    }
+
+    /**
+     * 是否是雪花算法模式，这种模式下id与Redis计数器无关
+     */
+    public boolean isSnowflake() {
+        return "snowflake".equals(mode);
+    }
+
+    /**
+     * SET id:worker:{workerId} token NX EX ttl，从随机位置开始找一个空闲的机器id
+     */
+    private void leaseWorkerId() {
+        long begin = System.currentTimeMillis();
+        int size = (int) SnowflakeIdWorker.MAX_WORKER_ID + 1;
+        int start = RandomUtil.randomInt(size);
+        for (int i = 0; i < size; i++) {
+            int workerId = (start + i) % size;
+            String key = ID_WORKER_KEY + workerId;
+            Boolean success = stringRedisTemplate.opsForValue()
+                    .setIfAbsent(key, WORKER_TOKEN, ID_WORKER_TTL, TimeUnit.SECONDS);
+            if (Boolean.TRUE.equals(success)) {
+                workerKey = key;
+                snowflakeIdWorker = new SnowflakeIdWorker(workerId);
+                extendLease(begin);
+                log.info("租用机器id成功，workerId=" + workerId);
+                return;
+            }
+        }
+        throw new IllegalStateException("没有空闲的机器id");
+    }
+
+    /**
+     * 续期在Redis中过期之前停止发号：续期失败时继续使用当前机器id，直到截止时间；
+     * 租约丢失时立即停止，重新租用成功后再恢复
+     */
+    private void renewWorkerId() {
+        long begin = System.currentTimeMillis();
+        try {
+            Long result = stringRedisTemplate.execute(
+                    RENEW_SCRIPT,
+                    Collections.singletonList(workerKey),
+                    WORKER_TOKEN, ID_WORKER_TTL.toString()
+            );
+            if (result == null || result == 0) {
+                // 租约已过期并可能被其它节点占用，停止发号，重新租用一个机器id
+                leaseDeadline = 0;
+                log.error("机器id租约丢失，重新租用：" + workerKey);
+                leaseWorkerId();
+                return;
+            }
+            extendLease(begin);
+        } catch (Exception e) {
+            // Redis不可用时在租约截止前继续使用当前机器id发号，下次再续期
+            log.error("机器id续期失败，租约剩余" + Math.max(leaseDeadline - System.currentTimeMillis(), 0) + "ms", e);
+        }
+    }
+
+    /**
+     * 以发出请求的时间计算租约截止时间，Redis中的过期时间不会早于它
+     */
+    private void extendLease(long begin) {
+        leaseDeadline = begin + TimeUnit.SECONDS.toMillis(ID_WORKER_TTL) - LEASE_MARGIN_MILLIS;
+    }
+
     public long nextId(String keyPrefix) {
+        if (isSnowflake()) {
+            // 雪花算法，不访问网络；租约可能已被其它节点占用时拒绝发号
+            if (System.currentTimeMillis() >= leaseDeadline) {
+                throw new IllegalStateException("机器id租约已过期，暂停生成id");
+            }
+            return snowflakeIdWorker.nextId();
+        }
         // 时间戳 + 计数器
-        // 1.生成时间戳
         LocalDateTime now = LocalDateTime.now();
+        long count;
+        if ("segment".equals(mode)) {
+            // 号段模式，从本地号段中发放计数
+            count = segmentBuffers.computeIfAbsent(keyPrefix, SegmentBuffer::new).nextCount(date(now));
+        } else {
+            // 自增长（每天一个key，方便统计）
+            count = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, now));
+        }
+        // 拼接并返回
+        return idBase(now) | count;
+    }
+
+    /**
+     * 计数器key，精确到天 icr:keyPrefix:yyyyMMdd
+     */
+    public String counterKey(String keyPrefix, LocalDateTime now) {
+        return counterKey(keyPrefix, date(now));
+    }
+
+    private String counterKey(String keyPrefix, String date) {
+        return "icr:" + keyPrefix + ":" + date;
+    }
+
+    /**
+     * id的时间戳部分，id = idBase | count，供lua脚本中用同一个计数器生成id
+     */
+    public long idBase(LocalDateTime now) {
         long nowSecond = now.toEpochSecond(ZoneOffset.UTC);
         long timeStamp = nowSecond - BEGIN_TIMESTAMP;
-        // 2.生成序列号
-        // 2.1 获取当前日期，精确到天
-        String date = now.format(DateTimeFormatter.ofPattern("yyyyMMdd"));
-        // 2.2 自增长（每天一个key，方便统计）
-        long count = stringRedisTemplate.opsForValue().increment("icr:" + keyPrefix + ":" + date);
-        // 3.拼接并返回
-        return timeStamp << COUNT_BITS | count;
+        return timeStamp << COUNT_BITS;
+    }
+
+    private String date(LocalDateTime now) {
+        long epochDay = now.toLocalDate().toEpochDay();
+        DateKey dateKey = today;
+        if (dateKey == null || dateKey.epochDay != epochDay) {
+            // 跨天了，重新格式化
+            dateKey = new DateKey(epochDay, now.format(DATE_FORMATTER));
+            today = dateKey;
+        }
+        return dateKey.date;
+    }
+
+    private static class DateKey {
+        private final long epochDay;
+        private final String date;
+
+        DateKey(long epochDay, String date) {
+            this.epochDay = epochDay;
+            this.date = date;
+        }
+    }
+
+    /**
+     * 号段 [min, max]，属于某一天的计数器
+     */
+    private static class Segment {
+        private final String date;
+        private final long max;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        Segment(String date, long min, long max) {
+            this.date = date;
+            this.max = max;
+            this.prefetchAt = min + (long) ((max - min + 1) * PREFETCH_RATIO);
+            this.cursor = new AtomicLong(min - 1);
+        }
+    }
+
+    /**
+     * 双号段缓冲：当前号段用到80%时异步预取下一个号段，用完直接切换，不阻塞发号
+     */
+    private class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private volatile Segment next;
+        private final AtomicBoolean loading = new AtomicBoolean(false);
+
+        SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        long nextCount(String date) {
+            while (true) {
+                Segment segment = current;
+                if (segment != null && segment.date.equals(date)) {
+                    long count = segment.cursor.incrementAndGet();
+                    if (count <= segment.max) {
+                        if (count >= segment.prefetchAt && next == null && loading.compareAndSet(false, true)) {
+                            prefetch(date);
+                        }
+                        return count;
+                    }
+                }
+                // 号段用完或者跨天，切换号段
+                synchronized (this) {
+                    if (current == segment) {
+                        Segment prefetched = next;
+                        next = null;
+                        current = prefetched != null && prefetched.date.equals(date) ? prefetched : loadSegment(date);
+                    }
+                }
+            }
+        }
+
+        private void prefetch(String date) {
+            try {
+                segmentLoader.execute(() -> {
+                    try {
+                        next = loadSegment(date);
+                    } finally {
+                        loading.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                // 预取失败不影响发号，号段用完时同步领取
+                loading.set(false);
+            }
+        }
+
+        /**
+         * INCRBY icr:keyPrefix:yyyyMMdd step，领取 [max - step + 1, max] 这一段计数
+         */
+        private Segment loadSegment(String date) {
+            long max = stringRedisTemplate.opsForValue().increment(counterKey(keyPrefix, date), step);
+            return new Segment(date, max - step + 1, max);
+        }
     }
 
     public static void main(String[] args) {
@@ -0,0 +1,55 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.hmdp.dto.Result;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 把缓存中已经是JSON的数据直接拼接到Result中写出，不再经过对象和Jackson序列化
+ * <p>
+ * 其它Result使用接口的ObjectMapper序列化，与 @RestController 返回的JSON一致（忽略null字段、日期格式）
+ */
+@Component
+public class ResultWriter {
+
+    private static final byte[] OK_PREFIX = "{\"success\":true,\"data\":".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] OK_SUFFIX = "}".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 接口返回JSON使用的ObjectMapper
+     */
+    @Resource
+    private ObjectMapper objectMapper;
+
+    /**
+     * 写出 Result.ok(data)
+     *
+     * @param data data字段的JSON
+     */
+    public void writeOk(HttpServletResponse response, byte[] data) throws IOException {
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setContentLength(OK_PREFIX.length + data.length + OK_SUFFIX.length);
+        ServletOutputStream out = response.getOutputStream();
+        out.write(OK_PREFIX);
+        out.write(data);
+        out.write(OK_SUFFIX);
+        out.flush();
+    }
+
+    public void write(HttpServletResponse response, Result result) throws IOException {
+        byte[] body = objectMapper.writeValueAsBytes(result);
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.setContentLength(body.length);
+        response.getOutputStream().write(body);
+        response.getOutputStream().flush();
+    }
+}
@@ -0,0 +1,181 @@
+package com.hmdp.utils;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_EPOCH_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * 秒杀售罄标记：本地记录已经售罄的优惠券，售罄后的请求直接在内存中返回，不再访问Redis
+ * <p>
+ * 标记通过Redis发布订阅同步到所有节点，消息格式：+voucherId:epoch 售罄，-voucherId:epoch 补货清除。
+ * 每次补货时库存版本 seckill:epoch:{voucherId} 加1，请求在执行脚本之前记下当时的版本，
+ * 售罄标记只在版本不小于已知版本时生效，补货前发出的售罄消息晚于补货消息到达也会被忽略，不依赖消息顺序。
+ * 标记每隔 recheck-millis 与Redis中的库存版本核对一次，漏掉补货消息的节点也会清除标记
+ */
+@Slf4j
+@Component
+public class SeckillSoldOutRegistry implements MessageListener {
+
+    private static final String SOLD_OUT = "+";
+    private static final String CLEAR = "-";
+
+    /**
+     * 售罄标记与Redis库存版本的核对间隔（毫秒）
+     */
+    @Value("${seckill.sold-out.recheck-millis:1000}")
+    private long recheckMillis;
+
+    /**
+     * 售罄的优惠券 -> 标记
+     */
+    private final Map<Long, Mark> soldOutVouchers = new ConcurrentHashMap<>();
+
+    /**
+     * 本节点已知的库存版本
+     */
+    private final Map<Long, Long> epochs = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisConnectionFactory redisConnectionFactory;
+
+    private RedisMessageListenerContainer container;
+
+    @PostConstruct
+    private void init() {
+        container = new RedisMessageListenerContainer();
+        container.setConnectionFactory(redisConnectionFactory);
+        container.addMessageListener(this, new ChannelTopic(SECKILL_SOLD_OUT_CHANNEL));
+        container.afterPropertiesSet();
+        container.start();
+    }
+
+    @PreDestroy
+    private void destroy() throws Exception {
+        container.destroy();
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Mark mark = soldOutVouchers.get(voucherId);
+        if (mark == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        if (now - mark.checkedAt < recheckMillis) {
+            return true;
+        }
+        // 到了核对时间，先更新核对时间，其它请求在核对期间继续使用标记
+        mark.checkedAt = now;
+        try {
+            String value = stringRedisTemplate.opsForValue().get(SECKILL_EPOCH_KEY + voucherId);
+            long epoch = value == null ? 0L : Long.parseLong(value);
+            if (epoch > mark.epoch) {
+                // 漏掉了补货消息
+                log.info("售罄标记已过期，优惠券：" + voucherId + "，库存版本：" + mark.epoch + " -> " + epoch);
+                applyClear(voucherId, epoch);
+                return false;
+            }
+        } catch (Exception e) {
+            log.error("核对售罄标记失败，优惠券：" + voucherId, e);
+        }
+        return true;
+    }
+
+    /**
+     * 当前已知的库存版本，在执行秒杀脚本之前读取；本节点第一次遇到的优惠券从Redis读取一次
+     */
+    public long epoch(Long voucherId) {
+        Long epoch = epochs.get(voucherId);
+        if (epoch != null) {
+            return epoch;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_EPOCH_KEY + voucherId);
+        return epochs.merge(voucherId, value == null ? 0L : Long.parseLong(value), Math::max);
+    }
+
+    /**
+     * 标记售罄并通知其它节点
+     *
+     * @param epoch 执行脚本之前读取的库存版本
+     */
+    public void markSoldOut(Long voucherId, long epoch) {
+        // 已经标记过或者版本已过期的不再广播
+        if (applySoldOut(voucherId, epoch)) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, SOLD_OUT + voucherId + ":" + epoch);
+        }
+    }
+
+    /**
+     * 补货后库存版本加1，清除售罄标记并通知其它节点
+     */
+    public void clear(Long voucherId) {
+        Long epoch = stringRedisTemplate.opsForValue().increment(SECKILL_EPOCH_KEY + voucherId);
+        applyClear(voucherId, epoch == null ? 0 : epoch);
+        stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, CLEAR + voucherId + ":" + epoch);
+    }
+
+    /**
+     * @return 是否新增了标记
+     */
+    private synchronized boolean applySoldOut(Long voucherId, long epoch) {
+        long known = epochs.merge(voucherId, epoch, Math::max);
+        if (epoch < known) {
+            // 补货之前的售罄结果
+            return false;
+        }
+        return soldOutVouchers.put(voucherId, new Mark(epoch)) == null;
+    }
+
+    private synchronized void applyClear(Long voucherId, long epoch) {
+        epochs.merge(voucherId, epoch, Math::max);
+        soldOutVouchers.computeIfPresent(voucherId, (id, marked) -> marked.epoch < epoch ? null : marked);
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            int separator = body.indexOf(':');
+            Long voucherId = Long.valueOf(body.substring(1, separator));
+            long epoch = Long.parseLong(body.substring(separator + 1));
+            if (body.startsWith(SOLD_OUT)) {
+                applySoldOut(voucherId, epoch);
+            } else if (body.startsWith(CLEAR)) {
+                applyClear(voucherId, epoch);
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            log.error("无效的售罄消息：" + body);
+        }
+    }
+
+    private static class Mark {
+        private final long epoch;
+        /**
+         * 上一次与Redis核对的时间
+         */
+        private volatile long checkedAt;
+
+        Mark(long epoch) {
+            this.epoch = epoch;
+            this.checkedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.Resource;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_KEY;
+
+/**
+ * 秒杀库存分片：把一个优惠券的库存拆成K个分片，每个分片使用不同的hash tag，分散到集群的不同slot上
+ * <p>
+ * 用户按userId路由到固定的分片，一人一单的订单集合与库存分片放在同一个slot，本分片库存不足时再去其它分片借库存
+ */
+@Component
+public class SeckillStockShards {
+
+    /**
+     * 库存分片数，1代表不分片，使用seckill.lua的单key模式
+     */
+    @Value("${seckill.stock.shards:1}")
+    private int shards;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private static final DefaultRedisScript<Long> SHARD_SCRIPT;
+    private static final DefaultRedisScript<Long> BORROW_SCRIPT;
+
+    // 初始化提高性能
+    static {
+        SHARD_SCRIPT = new DefaultRedisScript<>();
+        SHARD_SCRIPT.setLocation(new ClassPathResource("seckill_shard.lua"));
+        SHARD_SCRIPT.setResultType(Long.class);
+        BORROW_SCRIPT = new DefaultRedisScript<>();
+        BORROW_SCRIPT.setLocation(new ClassPathResource("seckill_borrow.lua"));
+        BORROW_SCRIPT.setResultType(Long.class);
+    }
+
+    public boolean isEnabled() {
+        return shards > 1;
+    }
+
+    /**
+     * 分片库存key seckill:stock:{voucherId:i}
+     */
+    public static String stockKey(Long voucherId, int shard) {
+        return SECKILL_STOCK_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 分片订单key seckill:order:{voucherId:i}，和同一分片的库存key落在同一个slot
+     */
+    public static String orderKey(Long voucherId, int shard) {
+        return SECKILL_ORDER_KEY + "{" + voucherId + ":" + shard + "}";
+    }
+
+    /**
+     * 把库存平均分到各个分片，余数分给前面的分片
+     */
+    public void seed(Long voucherId, int stock) {
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+    }
+
+    /**
+     * 分片库存不存在时才写入，用于Redis故障恢复后预热，不覆盖正在扣减的库存
+     */
+    public void seedIfAbsent(Long voucherId, int stock) {
+        if (Boolean.TRUE.equals(stringRedisTemplate.hasKey(stockKey(voucherId, 0)))) {
+            return;
+        }
+        for (int i = 0; i < shards; i++) {
+            int shardStock = stock / shards + (i < stock % shards ? 1 : 0);
+            stringRedisTemplate.opsForValue().setIfAbsent(stockKey(voucherId, i), String.valueOf(shardStock));
+        }
+    }
+
+    /**
+     * 判断购买资格并扣减库存
+     *
+     * @return 结果 0：成功 1：库存不足 2：重复下单，与seckill.lua一致；成功时带上扣减的库存key，用于失败时归还
+     */
+    public Acquired tryAcquire(Long voucherId, Long userId) {
+        // 1.用户固定路由到自己的分片
+        int home = Math.floorMod(userId.hashCode(), shards);
+        String homeStockKey = stockKey(voucherId, home);
+        String homeOrderKey = orderKey(voucherId, home);
+        Long result = stringRedisTemplate.execute(
+                SHARD_SCRIPT,
+                Arrays.asList(homeStockKey, homeOrderKey),
+                userId.toString(), "0"
+        );
+        int r = result.intValue();
+        if (r != 1) {
+            return new Acquired(r, homeStockKey, homeOrderKey);
+        }
+        // 2.本分片库存不足，依次去其它分片借库存
+        for (int i = 1; i < shards; i++) {
+            String stockKey = stockKey(voucherId, (home + i) % shards);
+            Long borrowed = stringRedisTemplate.execute(BORROW_SCRIPT, Collections.singletonList(stockKey));
+            if (borrowed.intValue() != 0) {
+                continue;
+            }
+            // 3.借到库存后回到本分片下单，一人一单仍由本分片的订单集合保证
+            result = stringRedisTemplate.execute(
+                    SHARD_SCRIPT,
+                    Arrays.asList(homeStockKey, homeOrderKey),
+                    userId.toString(), "1"
+            );
+            r = result.intValue();
+            if (r != 0) {
+                // 3.1 并发重复下单，归还借来的库存
+                stringRedisTemplate.opsForValue().increment(stockKey);
+            }
+            return new Acquired(r, stockKey, homeOrderKey);
+        }
+        // 4.所有分片都没有库存
+        return new Acquired(1, homeStockKey, homeOrderKey);
+    }
+
+    /**
+     * 下单消息发送失败时归还库存并删除下单记录，用户可以重新下单
+     */
+    public void release(Acquired acquired, Long userId) {
+        stringRedisTemplate.opsForSet().remove(acquired.getOrderKey(), userId.toString());
+        stringRedisTemplate.opsForValue().increment(acquired.getStockKey());
+    }
+
+    @Data
+    public static class Acquired {
+        /**
+         * 0：成功 1：库存不足 2：重复下单
+         */
+        private final int result;
+        /**
+         * 扣减的库存key，借库存时是被借用分片的key
+         */
+        private final String stockKey;
+        private final String orderKey;
+    }
+}
@@ -0,0 +1,334 @@
+package com.hmdp.utils;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 店铺坐标的内存网格索引：按经纬度把店铺划分到固定大小的网格中，查询时只扫描附近的网格
+ * <p>
+ * 店铺的坐标、类型、价格和评分放在基本类型数组中，按槽位访问，查询时先用条件过滤再计算距离，
+ * 可以同时按距离、类型、价格和评分筛选，这是Redis GEO做不到的
+ */
+public class ShopSpatialIndex {
+
+    /**
+     * 与Redis GEO相同的地球半径（米）
+     */
+    private static final double EARTH_RADIUS = 6372797.560856;
+
+    /**
+     * 纬度1度的长度（米）
+     */
+    private static final double METERS_PER_DEGREE = 111320;
+
+    private final double cellDegrees;
+
+    private long[] ids = new long[1024];
+    private double[] xs = new double[1024];
+    private double[] ys = new double[1024];
+    private long[] typeIds = new long[1024];
+    private long[] prices = new long[1024];
+    private int[] scores = new int[1024];
+    private int size;
+
+    /**
+     * 删除后空出的槽位
+     */
+    private final IntList freeSlots = new IntList();
+
+    private final Map<Long, Integer> slots = new HashMap<>();
+
+    /**
+     * 网格 -> 网格中店铺的槽位
+     */
+    private final Map<Long, IntList> cells = new HashMap<>();
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * @param cellDegrees 网格边长（度），0.01度约1.1公里
+     */
+    public ShopSpatialIndex(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+    }
+
+    /**
+     * 新增或更新店铺
+     */
+    public void put(long id, long typeId, double x, double y, long price, int score) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.get(id);
+            if (slot == null) {
+                slot = freeSlots.isEmpty() ? allocate() : freeSlots.removeLast();
+                slots.put(id, slot);
+            } else {
+                cells.get(cellKey(xs[slot], ys[slot])).remove(slot);
+            }
+            ids[slot] = id;
+            xs[slot] = x;
+            ys[slot] = y;
+            typeIds[slot] = typeId;
+            prices[slot] = price;
+            scores[slot] = score;
+            cells.computeIfAbsent(cellKey(x, y), k -> new IntList()).add(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(long id) {
+        lock.writeLock().lock();
+        try {
+            Integer slot = slots.remove(id);
+            if (slot == null) {
+                return;
+            }
+            cells.get(cellKey(xs[slot], ys[slot])).remove(slot);
+            freeSlots.add(slot);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return slots.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 查询半径内符合条件的店铺，按距离由近到远
+     *
+     * @param radius 半径（米）
+     * @param limit  最多返回的条数
+     */
+    public List<Nearby> within(double x, double y, double radius, Filter filter, int limit) {
+        lock.readLock().lock();
+        try {
+            double latDegrees = radius / METERS_PER_DEGREE;
+            double lonDegrees = radius / (METERS_PER_DEGREE * Math.max(Math.cos(Math.toRadians(y)), 0.01));
+            int minX = cell(x - lonDegrees);
+            int maxX = cell(x + lonDegrees);
+            int minY = cell(y - latDegrees);
+            int maxY = cell(y + latDegrees);
+            List<Nearby> result = new ArrayList<>();
+            for (int cy = minY; cy <= maxY; cy++) {
+                for (int cx = minX; cx <= maxX; cx++) {
+                    IntList cell = cells.get(cellKey(cx, cy));
+                    if (cell == null) {
+                        continue;
+                    }
+                    for (int i = 0; i < cell.size; i++) {
+                        int slot = cell.values[i];
+                        // 先按条件过滤，再计算距离
+                        if (!matches(slot, filter)) {
+                            continue;
+                        }
+                        double distance = distance(x, y, xs[slot], ys[slot]);
+                        if (distance <= radius) {
+                            result.add(new Nearby(ids[slot], distance));
+                        }
+                    }
+                }
+            }
+            result.sort(Comparator.comparingDouble(Nearby::getDistance));
+            return result.size() > limit ? new ArrayList<>(result.subList(0, limit)) : result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 查询最近的k个符合条件的店铺，从所在网格开始一圈一圈向外扩展，
+     * 已经找到k个并且第k个的距离小于下一圈的最近距离时停止
+     *
+     * @param maxRadius 最大搜索半径（米）
+     */
+    public List<Nearby> nearest(double x, double y, int k, Filter filter, double maxRadius) {
+        lock.readLock().lock();
+        try {
+            PriorityQueue<Nearby> heap = new PriorityQueue<>(k + 1,
+                    Comparator.comparingDouble(Nearby::getDistance).reversed());
+            // 最大半径边缘纬度处的网格宽度，决定最多扩展几圈
+            double edgeMeters = cellDegrees * METERS_PER_DEGREE
+                    * Math.max(Math.cos(Math.toRadians(Math.abs(y) + maxRadius / METERS_PER_DEGREE + cellDegrees)), 0.01);
+            int maxRing = (int) Math.ceil(maxRadius / edgeMeters) + 1;
+            int cx = cell(x);
+            int cy = cell(y);
+            for (int ring = 0; ring <= maxRing; ring++) {
+                for (int dy = -ring; dy <= ring; dy++) {
+                    // 只访问这一圈边上的网格
+                    int step = (dy == -ring || dy == ring) ? 1 : ring * 2;
+                    for (int dx = -ring; dx <= ring; dx += Math.max(step, 1)) {
+                        collect(cells.get(cellKey(cx + dx, cy + dy)), x, y, k, filter, maxRadius, heap);
+                    }
+                }
+                if (heap.size() == k && heap.peek().getDistance() <= ringMeters(y, ring)) {
+                    break;
+                }
+            }
+            Nearby[] result = heap.toArray(new Nearby[0]);
+            Arrays.sort(result, Comparator.comparingDouble(Nearby::getDistance));
+            return Arrays.asList(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 扫描完第ring圈后，圈外网格中的点到查询点的最短距离：ring个网格宽度，
+     * 经度方向的宽度按下一圈靠近极点一侧的纬度计算，越靠近极点网格越窄
+     */
+    private double ringMeters(double y, int ring) {
+        double edge = Math.min(Math.abs(y) + (ring + 1) * cellDegrees, 90);
+        return ring * cellDegrees * METERS_PER_DEGREE * Math.cos(Math.toRadians(edge));
+    }
+
+    /**
+     * 基本类型数组占用的内存估算（字节），不含槽位映射
+     */
+    public long memoryBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = (long) ids.length * (8 + 8 + 8 + 8 + 8 + 4);
+            for (IntList cell : cells.values()) {
+                bytes += cell.values.length * 4L + 16;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void collect(IntList cell, double x, double y, int k, Filter filter, double maxRadius, PriorityQueue<Nearby> heap) {
+        if (cell == null) {
+            return;
+        }
+        for (int i = 0; i < cell.size; i++) {
+            int slot = cell.values[i];
+            if (!matches(slot, filter)) {
+                continue;
+            }
+            double distance = distance(x, y, xs[slot], ys[slot]);
+            if (distance > maxRadius) {
+                continue;
+            }
+            if (heap.size() < k) {
+                heap.add(new Nearby(ids[slot], distance));
+            } else if (distance < heap.peek().getDistance()) {
+                heap.poll();
+                heap.add(new Nearby(ids[slot], distance));
+            }
+        }
+    }
+
+    private boolean matches(int slot, Filter filter) {
+        if (filter == null) {
+            return true;
+        }
+        return (filter.getTypeId() == null || typeIds[slot] == filter.getTypeId())
+                && (filter.getMinPrice() == null || prices[slot] >= filter.getMinPrice())
+                && (filter.getMaxPrice() == null || prices[slot] <= filter.getMaxPrice())
+                && (filter.getMinScore() == null || scores[slot] >= filter.getMinScore());
+    }
+
+    private int allocate() {
+        if (size == ids.length) {
+            int capacity = ids.length * 2;
+            ids = Arrays.copyOf(ids, capacity);
+            xs = Arrays.copyOf(xs, capacity);
+            ys = Arrays.copyOf(ys, capacity);
+            typeIds = Arrays.copyOf(typeIds, capacity);
+            prices = Arrays.copyOf(prices, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+        }
+        return size++;
+    }
+
+    private int cell(double degrees) {
+        return (int) Math.floor(degrees / cellDegrees);
+    }
+
+    private long cellKey(double x, double y) {
+        return cellKey(cell(x), cell(y));
+    }
+
+    private static long cellKey(int cx, int cy) {
+        return ((long) cy << 32) | (cx & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 球面距离（米），与Redis GEO的计算方式一致
+     */
+    private static double distance(double x1, double y1, double x2, double y2) {
+        double lat1 = Math.toRadians(y1);
+        double lat2 = Math.toRadians(y2);
+        double u = Math.sin((lat2 - lat1) / 2);
+        double v = Math.sin(Math.toRadians(x2 - x1) / 2);
+        return 2.0 * EARTH_RADIUS * Math.asin(Math.sqrt(u * u + Math.cos(lat1) * Math.cos(lat2) * v * v));
+    }
+
+    /**
+     * 查询条件，为null的条件不过滤
+     */
+    @Data
+    public static class Filter {
+        private Long typeId;
+        private Long minPrice;
+        private Long maxPrice;
+        private Integer minScore;
+    }
+
+    @Data
+    public static class Nearby {
+        private final long id;
+        /**
+         * 距离（米）
+         */
+        private final double distance;
+    }
+
+    /**
+     * 可增长的int数组，避免装箱
+     */
+    private static final class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    values[i] = values[--size];
+                    return;
+                }
+            }
+        }
+
+        int removeLast() {
+            return values[--size];
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.hmdp.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 签到记录的位运算：BITFIELD GET u{days} 0 取出1号到days号的签到，最高位是1号，最低位是days号
+ */
+public class SignBits {
+
+    private SignBits() {
+    }
+
+    /**
+     * bitmap的前4个字节按大端转成无符号32位整数，第1个字节的最高位是1号，用于归档到 tb_sign
+     *
+     * @return 0 ~ 0xFFFFFFFF，1号签到时最高位为1，不能存成有符号int
+     */
+    public static long pack(byte[] raw) {
+        long bits = 0;
+        for (int i = 0; i < 4; i++) {
+            bits = bits << 8 | (i < raw.length ? raw[i] & 0xFF : 0);
+        }
+        return bits;
+    }
+
+    /**
+     * 归档的32位签到记录转成与 BITFIELD GET u{days} 0 相同的结果：右移到最低位是days号
+     */
+    public static long unpack(long packed, int days) {
+        return (packed & 0xFFFFFFFFL) >>> (32 - days);
+    }
+
+    /**
+     * 签到天数
+     */
+    public static int count(long bits) {
+        return Long.bitCount(bits);
+    }
+
+    /**
+     * 从最低位开始连续的1的个数；最后一天还没签到时从前一天开始计算，不中断连续签到
+     */
+    public static int streak(long bits) {
+        if ((bits & 1) == 0) {
+            bits >>>= 1;
+        }
+        return Long.numberOfTrailingZeros(~bits);
+    }
+
+    /**
+     * 最长连续的1：每次与左移一位的自己相与，每段连续的1都会少一位，能执行的次数就是最长的长度
+     */
+    public static int maxStreak(long bits) {
+        int length = 0;
+        while (bits != 0) {
+            bits &= bits << 1;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * 签到的日期，从小到大
+     */
+    public static List<Integer> days(long bits, int days) {
+        List<Integer> signDays = new ArrayList<>(count(bits));
+        // 从最高位（1号）开始，只遍历为1的位
+        for (long rest = bits; rest != 0; rest &= ~Long.highestOneBit(rest)) {
+            signDays.add(days - 63 + Long.numberOfLeadingZeros(rest));
+        }
+        return signDays;
+    }
+}
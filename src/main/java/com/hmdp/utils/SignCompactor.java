@@ -0,0 +1,177 @@
+package com.hmdp.utils;
+
+import cn.hutool.core.thread.NamedThreadFactory;
+import com.hmdp.entity.Sign;
+import com.hmdp.mapper.SignMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.redisson.api.RLock;
+import org.redisson.api.RedissonClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import java.nio.charset.StandardCharsets;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.USER_SIGN_KEY;
+
+/**
+ * 签到记录归档：定期SCAN已结束月份的签到bitmap，每个用户每月写入 tb_sign 一行，写入成功后UNLINK删除key
+ * <p>
+ * 当月的签到只写Redis，月份结束后才落库，不会每次签到都写数据库；
+ * 写入时按位或合并，归档中途失败重新执行也不会丢失签到
+ */
+@Slf4j
+@Component
+public class SignCompactor {
+
+    private static final DateTimeFormatter SIGN_MONTH = DateTimeFormatter.ofPattern("yyyyMM");
+
+    private static final String LOCK_KEY = "lock:sign:compact";
+
+    @Value("${sign.compact.enabled:true}")
+    private boolean enabled;
+
+    /**
+     * 归档间隔（分钟）
+     */
+    @Value("${sign.compact.interval-minutes:60}")
+    private long intervalMinutes;
+
+    /**
+     * 每批SCAN、写入和删除的key数
+     */
+    @Value("${sign.compact.batch-size:500}")
+    private int batchSize;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedissonClient redissonClient;
+
+    @Resource
+    private SignMapper signMapper;
+
+    private ScheduledExecutorService compactExecutor;
+
+    @PostConstruct
+    private void init() {
+        if (!enabled) {
+            return;
+        }
+        compactExecutor = Executors.newSingleThreadScheduledExecutor(new NamedThreadFactory("sign-compact-", true));
+        compactExecutor.scheduleWithFixedDelay(this::compact, intervalMinutes, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if (compactExecutor != null) {
+            compactExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 归档所有已结束月份的签到，多个节点同时只有一个执行
+     *
+     * @return 归档的key数
+     */
+    public long compact() {
+        RLock lock = redissonClient.getLock(LOCK_KEY);
+        if (!lock.tryLock()) {
+            return 0;
+        }
+        long compacted = 0;
+        try {
+            YearMonth current = YearMonth.now();
+            ScanOptions options = ScanOptions.scanOptions().match(USER_SIGN_KEY + "*").count(batchSize).build();
+            List<String> keys = new ArrayList<>(batchSize);
+            List<Sign> signs = new ArrayList<>(batchSize);
+            try (Cursor<byte[]> cursor = stringRedisTemplate.executeWithStickyConnection(
+                    (RedisCallback<Cursor<byte[]>>) connection -> connection.scan(options))) {
+                while (cursor.hasNext()) {
+                    String key = new String(cursor.next(), StandardCharsets.UTF_8);
+                    Sign sign = parse(key);
+                    // 只归档已结束的月份
+                    if (sign == null || !YearMonth.of(sign.getYear(), sign.getMonth()).isBefore(current)) {
+                        continue;
+                    }
+                    keys.add(key);
+                    signs.add(sign);
+                    if (keys.size() == batchSize) {
+                        compacted += compactBatch(keys, signs);
+                        keys.clear();
+                        signs.clear();
+                    }
+                }
+            }
+            if (!keys.isEmpty()) {
+                compacted += compactBatch(keys, signs);
+            }
+            if (compacted > 0) {
+                log.info("签到归档完成，共{}个用户月份", compacted);
+            }
+        } catch (Exception e) {
+            log.error("签到归档失败，已归档{}个用户月份", compacted, e);
+        } finally {
+            lock.unlock();
+        }
+        return compacted;
+    }
+
+    /**
+     * 1.pipeline读取bitmap 2.多行写入 tb_sign 3.UNLINK删除已写入的key
+     */
+    private int compactBatch(List<String> keys, List<Sign> signs) {
+        List<Object> values = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            keys.forEach(key -> connection.get(key.getBytes(StandardCharsets.UTF_8)));
+            return null;
+        }, null);
+        List<Sign> rows = new ArrayList<>(signs.size());
+        List<String> written = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] raw = (byte[]) values.get(i);
+            if (raw == null) {
+                // 已被其他方式删除
+                continue;
+            }
+            rows.add(signs.get(i).setBits(SignBits.pack(raw)));
+            written.add(keys.get(i));
+        }
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        signMapper.upsertBatch(rows);
+        stringRedisTemplate.unlink(written);
+        return rows.size();
+    }
+
+    /**
+     * sign:{userId}:{yyyyMM}
+     */
+    private static Sign parse(String key) {
+        String[] parts = key.substring(USER_SIGN_KEY.length()).split(":");
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            YearMonth month = YearMonth.parse(parts[1], SIGN_MONTH);
+            return new Sign().setUserId(Long.valueOf(parts[0])).setYear(month.getYear()).setMonth(month.getMonthValue());
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return null;
+        }
+    }
+}
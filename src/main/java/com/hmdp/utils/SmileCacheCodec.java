@@ -0,0 +1,59 @@
+package com.hmdp.utils;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+
+/**
+ * Jackson Smile二进制编解码，比JSON文本更紧凑，也不需要经过中间的JSONObject
+ * <p>
+ * ObjectMapper由Spring的 Jackson2ObjectMapperBuilder 创建，spring.jackson.* 配置（忽略空字段、日期格式）
+ * 与接口返回的JSON一致，可以逐个token直接转成响应的JSON
+ */
+public class SmileCacheCodec implements CacheCodec {
+
+    public static final byte ID = 2;
+
+    private final ObjectMapper objectMapper;
+
+    /**
+     * @param objectMapper 使用SmileFactory、其它配置与接口一致的ObjectMapper
+     */
+    public SmileCacheCodec(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Object value) {
+        try {
+            return objectMapper.writeValueAsBytes(value);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存序列化失败", e);
+        }
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> type) {
+        try {
+            return objectMapper.readValue(bytes, type);
+        } catch (IOException e) {
+            throw new IllegalStateException("缓存反序列化失败", e);
+        }
+    }
+
+    @Override
+    public boolean writeJson(byte[] bytes, JsonGenerator generator) throws IOException {
+        try (JsonParser parser = objectMapper.getFactory().createParser(bytes)) {
+            parser.nextToken();
+            generator.copyCurrentStructure(parser);
+        }
+        return true;
+    }
+}
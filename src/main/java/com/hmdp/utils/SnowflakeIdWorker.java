@@ -0,0 +1,62 @@
+package com.hmdp.utils;
+
+/**
+ * 雪花算法id：1位符号 + 1位雪花标记 + 40位毫秒时间戳 + 10位机器id + 12位序列号，生成id不需要访问网络
+ * <p>
+ * 时钟回拨时继续沿用上一次的时间戳发号，序列号用完再把逻辑时间戳往后推一毫秒，保证id单调递增不重复
+ * <p>
+ * 计数器和号段模式的id是 秒级时间戳 << 32 | 计数，2057年之前第62位都是0；雪花id固定把第62位置1，
+ * 两种id不会重复，id.mode 在两种模式之间切换不需要迁移数据，切换到雪花算法后的id都大于之前的id
+ */
+public class SnowflakeIdWorker {
+
+    /**
+     * 开始时间戳 2023-01-01 00:00:00 UTC（毫秒）
+     */
+    private static final long BEGIN_TIMESTAMP = 1672531200000L;
+
+    public static final int WORKER_ID_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final int TIMESTAMP_BITS = 40;
+
+    /**
+     * 雪花标记位，与计数器模式的id区分
+     */
+    private static final long SNOWFLAKE_FLAG = 1L << (TIMESTAMP_BITS + WORKER_ID_BITS + SEQUENCE_BITS);
+
+    public static final long MAX_WORKER_ID = (1L << WORKER_ID_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+
+    private final long workerId;
+
+    private long lastTimestamp = -1L;
+
+    private long sequence = 0L;
+
+    public SnowflakeIdWorker(long workerId) {
+        if (workerId < 0 || workerId > MAX_WORKER_ID) {
+            throw new IllegalArgumentException("机器id超出范围：" + workerId);
+        }
+        this.workerId = workerId;
+    }
+
+    public synchronized long nextId() {
+        long timestamp = System.currentTimeMillis();
+        if (timestamp > lastTimestamp) {
+            // 新的一毫秒，序列号从0开始
+            lastTimestamp = timestamp;
+            sequence = 0L;
+        } else {
+            // 同一毫秒内或者时钟回拨，都沿用上一次的时间戳
+            sequence = (sequence + 1) & SEQUENCE_MASK;
+            if (sequence == 0) {
+                // 序列号用完，逻辑时间戳往后推一毫秒
+                lastTimestamp++;
+            }
+        }
+        return SNOWFLAKE_FLAG
+                | (lastTimestamp - BEGIN_TIMESTAMP) << (WORKER_ID_BITS + SEQUENCE_BITS)
+                | workerId << SEQUENCE_BITS
+                | sequence;
+    }
+}
@@ -0,0 +1,14 @@
+-- 1.参数列表
+-- 1.1 布隆过滤器bitmap key
+local bloomKey = KEYS[1]
+-- 1.2 ARGV 是k个哈希函数算出的bit位
+
+-- 2.bitmap不存在（已过期或被淘汰）时不写入，避免生成只有少数bit位的bitmap，把其它id都判断为不存在
+if(redis.call('exists',bloomKey) == 0) then
+    return 0
+end
+-- 3.把k个bit位都设置为1
+for i = 1, #ARGV do
+    redis.call('setbit',bloomKey,ARGV[i],1)
+end
+return 1
@@ -0,0 +1,17 @@
+-- 1.参数列表
+-- 1.1 布隆过滤器bitmap key
+local bloomKey = KEYS[1]
+-- 1.2 ARGV 是k个哈希函数算出的bit位
+
+-- 2.bitmap不存在（已切换后过期或被淘汰），返回-1，由调用方放行并重新读取指针
+if(redis.call('exists',bloomKey) == 0) then
+    return -1
+end
+-- 3.有任意一位是0，说明一定不存在，返回0
+for i = 1, #ARGV do
+    if(redis.call('getbit',bloomKey,ARGV[i]) == 0) then
+        return 0
+    end
+end
+-- 4.可能存在，返回1
+return 1
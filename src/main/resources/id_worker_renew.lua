@@ -0,0 +1,6 @@
+-- 比较租约中的节点标识与当前节点是否一致
+if(redis.call('get',KEYS[1]) == ARGV[1]) then
+ -- 续期 expire KEY ttl
+    return redis.call('expire',KEYS[1],ARGV[2])
+end
+return 0
@@ -3,8 +3,10 @@
 local voucherId = ARGV[1]
 -- 1.2 用户ID
 local userId = ARGV[2]
--- 1.3 订单id
-local orderId = ARGV[3]
+-- 1.3 订单id计数器key icr:order:yyyyMMdd，为空时ARGV[4]就是已经生成好的订单id（雪花算法）
+local idKey = ARGV[3]
+-- 1.4 订单id的时间戳部分 timestamp << 32
+local idBase = ARGV[4]
 -- 2. 数据库Key
 -- 2.1 库存key
 local stockKey =  'seckill:stock:' .. voucherId
@@ -15,17 +17,32 @@ local orderKey =  'seckill:order:' .. voucherId
 -- 3.1 判断库存是否充足 get stockKey
 if(tonumber(redis.call('get',stockKey)) <= 0) then
 -- 3.2 不足,返回1
-   return 1
+   return '1'
 end
 -- 3.3 判断用户是否下单 SISMEMBER orderKey userId
 if(redis.call('sismember',orderKey,userId) == 1) then
 -- 3.4 存在，重复下单返回2
-    return 2
+    return '2'
 end
 -- 3.5 扣库存 incrby stockKey - 1
 redis.call('incrby',stockKey,-1)
 -- 3.6 下单（保存用户） sadd orderKey userId
 redis.call('sadd',orderKey,userId)
--- 3.7 发送消息到队列中，XADD stream.orders * k1 v1 k2 v2 ...
+-- 3.7 有购买资格才生成订单id incr idKey，订单id = idBase + count
+local orderId = idBase
+if(idKey ~= '') then
+    local count = redis.call('incr',idKey)
+    -- 订单id超过了lua数字的精度，按十进制拆成高低两段相加
+    local high = tonumber(string.sub(idBase,1,-11)) or 0
+    local low = tonumber(string.sub(idBase,-10)) + count
+    high = high + math.floor(low / 1e10)
+    low = low % 1e10
+    if(high > 0) then
+        orderId = string.format('%d%010d',high,low)
+    else
+        orderId = string.format('%d',low)
+    end
+end
+-- 3.8 发送消息到队列中，XADD stream.orders * k1 v1 k2 v2 ...
 redis.call("xadd",'stream.orders','*','userId',userId,'voucherId',voucherId,'id',orderId)
-return 0
\ No newline at end of file
+return orderId
@@ -0,0 +1,14 @@
+-- 1.参数列表
+-- 1.1 被借用分片的库存key seckill:stock:{voucherId:i}
+local stockKey = KEYS[1]
+
+-- 2.脚本业务
+-- 2.1 判断分片库存是否充足 get stockKey
+local stock = tonumber(redis.call('get',stockKey))
+if(stock == nil or stock <= 0) then
+-- 2.2 不足,返回1
+    return 1
+end
+-- 2.3 扣库存 incrby stockKey - 1
+redis.call('incrby',stockKey,-1)
+return 0
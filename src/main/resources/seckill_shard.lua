@@ -0,0 +1,29 @@
+-- 1.参数列表
+-- 1.1 用户所在分片的库存key seckill:stock:{voucherId:i}
+local stockKey = KEYS[1]
+-- 1.2 用户所在分片的订单key seckill:order:{voucherId:i}，与库存分片在同一个slot
+local orderKey = KEYS[2]
+-- 1.3 用户ID
+local userId = ARGV[1]
+-- 1.4 是否已经从其它分片借到库存，1代表已借到，不再扣减本分片库存
+local borrowed = ARGV[2]
+
+-- 2.脚本业务
+-- 2.1 判断用户是否下单 SISMEMBER orderKey userId，同一用户永远落在同一分片，一人一单不受分片影响
+if(redis.call('sismember',orderKey,userId) == 1) then
+-- 2.2 存在，重复下单返回2
+    return 2
+end
+if(borrowed ~= '1') then
+-- 2.3 判断本分片库存是否充足 get stockKey
+    local stock = tonumber(redis.call('get',stockKey))
+    if(stock == nil or stock <= 0) then
+-- 2.4 不足,返回1，由调用方去其它分片借库存
+        return 1
+    end
+-- 2.5 扣库存 incrby stockKey - 1
+    redis.call('incrby',stockKey,-1)
+end
+-- 2.6 下单（保存用户） sadd orderKey userId
+redis.call('sadd',orderKey,userId)
+return 0
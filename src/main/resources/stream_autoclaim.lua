@@ -0,0 +1,17 @@
+-- 1.参数列表
+-- 1.1 队列key
+local queueKey = KEYS[1]
+-- 1.2 消费者组
+local group = ARGV[1]
+-- 1.3 认领消息的消费者
+local consumer = ARGV[2]
+-- 1.4 消息最小空闲时间（毫秒）
+local minIdle = ARGV[3]
+-- 1.5 扫描游标
+local start = ARGV[4]
+-- 1.6 每次认领数量
+local count = ARGV[5]
+-- 2.认领空闲超时的消息到当前消费者的PendingList XAUTOCLAIM stream.orders g1 c1 60000 0-0 COUNT 100 JUSTID
+local result = redis.call('xautoclaim', queueKey, group, consumer, minIdle, start, 'COUNT', count, 'JUSTID')
+-- 3.返回下一次扫描的游标，0-0代表扫描结束
+return result[1]
@@ -0,0 +1,16 @@
+-- 1.参数列表
+-- 1.1 队列key
+local queueKey = KEYS[1]
+-- 1.2 消费者组
+local group = ARGV[1]
+-- 2.创建消费者组，队列不存在时自动创建 XGROUP CREATE stream.orders g1 0 MKSTREAM
+local ok, err = pcall(redis.call, 'xgroup', 'create', queueKey, group, '0', 'MKSTREAM')
+if ok then
+    return 1
+end
+-- 3.消费者组已存在(BUSYGROUP)返回0，其它异常抛出
+local msg = type(err) == 'table' and err.err or tostring(err)
+if string.find(msg, 'BUSYGROUP') then
+    return 0
+end
+return redis.error_reply(msg)
@@ -0,0 +1,138 @@
+package com.hmdp;
+
+import com.hmdp.utils.ShopSpatialIndex;
+import io.lettuce.core.GeoArgs;
+import io.lettuce.core.GeoWithin;
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisURI;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.sync.RedisCommands;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 附近店铺查询：内存网格索引与Redis GEO的延迟和内存对比
+ * <p>
+ * 需要可以访问的Redis，通过 -Dredis.host -Dredis.port -Dredis.password 指定，直接运行main方法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ShopSpatialIndexBenchmark {
+
+    private static final String GEO_KEY = "benchmark:shop:geo";
+
+    /**
+     * 店铺分布的中心和范围（度）
+     */
+    private static final double CENTER_X = 120.15;
+    private static final double CENTER_Y = 30.28;
+    private static final double SPREAD = 0.5;
+
+    private static final double RADIUS = 5000;
+    private static final int K = 10;
+
+    @Param({"10000", "100000", "1000000"})
+    private int shops;
+
+    private ShopSpatialIndex index;
+
+    private RedisClient client;
+
+    private StatefulRedisConnection<String, String> connection;
+
+    private RedisCommands<String, String> redis;
+
+    private double[][] queries;
+
+    private int next;
+
+    private ShopSpatialIndex.Filter filter;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(42);
+        index = new ShopSpatialIndex(0.01);
+        client = RedisClient.create(RedisURI.builder()
+                .withHost(System.getProperty("redis.host", "192.168.81.129"))
+                .withPort(Integer.getInteger("redis.port", 6379))
+                .withPassword(System.getProperty("redis.password", "root"))
+                .build());
+        connection = client.connect();
+        redis = connection.sync();
+        redis.del(GEO_KEY);
+        // 经度、纬度、成员依次排列
+        List<Object> batch = new ArrayList<>(3000);
+        for (int id = 1; id <= shops; id++) {
+            double x = CENTER_X + (random.nextDouble() - 0.5) * SPREAD;
+            double y = CENTER_Y + (random.nextDouble() - 0.5) * SPREAD;
+            index.put(id, 1 + random.nextInt(10), x, y, 20 + random.nextInt(200), 30 + random.nextInt(21));
+            batch.add(x);
+            batch.add(y);
+            batch.add(String.valueOf(id));
+            if (batch.size() == 3000 || id == shops) {
+                redis.geoadd(GEO_KEY, batch.toArray());
+                batch.clear();
+            }
+        }
+        queries = new double[1024][];
+        for (int i = 0; i < queries.length; i++) {
+            queries[i] = new double[]{CENTER_X + (random.nextDouble() - 0.5) * SPREAD, CENTER_Y + (random.nextDouble() - 0.5) * SPREAD};
+        }
+        filter = new ShopSpatialIndex.Filter();
+        filter.setTypeId(3L);
+        filter.setMaxPrice(100L);
+        filter.setMinScore(40);
+        // 内存对比
+        Long redisBytes = redis.memoryUsage(GEO_KEY);
+        System.out.println("shops=" + shops + " index bytes=" + index.memoryBytes() + " redis bytes=" + redisBytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        redis.del(GEO_KEY);
+        connection.close();
+        client.shutdown();
+    }
+
+    private double[] nextQuery() {
+        next = (next + 1) & (queries.length - 1);
+        return queries[next];
+    }
+
+    @Benchmark
+    public List<ShopSpatialIndex.Nearby> indexNearest() {
+        double[] q = nextQuery();
+        return index.nearest(q[0], q[1], K, null, RADIUS);
+    }
+
+    @Benchmark
+    public List<ShopSpatialIndex.Nearby> indexNearestFiltered() {
+        double[] q = nextQuery();
+        return index.nearest(q[0], q[1], K, filter, RADIUS);
+    }
+
+    /**
+     * Lettuce 5.3 还不支持GEOSEARCH，使用等价的 GEORADIUS ... WITHDIST COUNT ASC
+     */
+    @Benchmark
+    public List<GeoWithin<String>> redisNearest() {
+        double[] q = nextQuery();
+        return redis.georadius(GEO_KEY, q[0], q[1], RADIUS, GeoArgs.Unit.m,
+                new GeoArgs().withDistance().withCount(K).asc());
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ShopSpatialIndexBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,67 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.Shop;
+import com.hmdp.service.IShopService;
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import javax.annotation.Resource;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * 店铺按桶存储：内存占用和读写一致性，需要连接数据库和Redis
+ */
+@SpringBootTest
+class CacheBucketTests {
+
+    @Resource
+    IShopService shopService;
+
+    @Resource
+    CacheClient cacheClient;
+
+    @Resource
+    CacheValueSerializer cacheValueSerializer;
+
+    @Resource
+    StringRedisTemplate stringRedisTemplate;
+
+    @Test
+    void testShopMemory() {
+        Map<Long, Shop> shops = shopService.query().last("limit 1000").list().stream()
+                .collect(Collectors.toMap(Shop::getId, Function.identity()));
+        assertFalse(shops.isEmpty());
+        Map<String, Object> result = new CacheMemoryBenchmark(stringRedisTemplate, cacheValueSerializer).measure(shops, 100);
+        // 按桶存储省去了每个key的对象头和过期字典，应该比每个店铺一个字符串key占用更少
+        assertTrue((Long) result.get("hashBytesPerEntry") < (Long) result.get("binaryBytesPerEntry"), result.toString());
+        assertTrue((Long) result.get("binaryBytesPerEntry") <= (Long) result.get("jsonBytesPerEntry"), result.toString());
+    }
+
+    @Test
+    void testBucketRoundTrip() {
+        String keyPrefix = "test:bucket:" + System.currentTimeMillis() + ":";
+        cacheClient.enableBucketStorage(keyPrefix, 100, 1L, TimeUnit.MINUTES);
+        Shop shop = shopService.query().last("limit 1").one();
+        assertNotNull(shop);
+        try {
+            cacheClient.set(keyPrefix + shop.getId(), shop, 1L, TimeUnit.MINUTES);
+            // 写入的是桶中的字段，不是单独的key
+            assertTrue(stringRedisTemplate.opsForHash().hasKey(keyPrefix + "bucket:" + shop.getId() / 100, shop.getId().toString()));
+            assertFalse(Boolean.TRUE.equals(stringRedisTemplate.hasKey(keyPrefix + shop.getId())));
+            Shop cached = cacheClient.queryWithPassThrough(keyPrefix, shop.getId(), Shop.class,
+                    id -> fail("桶中的数据没有命中"), 1L, TimeUnit.MINUTES);
+            assertEquals(shop.getId(), cached.getId());
+            assertEquals(shop.getName(), cached.getName());
+            assertEquals(shop.getX(), cached.getX());
+            assertEquals(shop.getY(), cached.getY());
+        } finally {
+            stringRedisTemplate.delete(keyPrefix + "bucket:" + shop.getId() / 100);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.hmdp.utils;
+
+import cn.hutool.json.JSONUtil;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ValueEncoding;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 缓存内存占用对比：把同一批对象分别按JSON字符串、二进制字符串和按桶存储的hash写入临时key，
+ * 用 MEMORY USAGE 统计每条数据占用的字节数，统计完成后删除临时key
+ */
+public class CacheMemoryBenchmark {
+
+    private static final String BENCHMARK_KEY = "benchmark:memory:";
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    private final CacheValueSerializer serializer;
+
+    public CacheMemoryBenchmark(StringRedisTemplate stringRedisTemplate, CacheValueSerializer serializer) {
+        this.stringRedisTemplate = stringRedisTemplate;
+        this.serializer = serializer;
+    }
+
+    /**
+     * @param values     id -> 对象
+     * @param bucketSize 每个桶的条数
+     * @return 每种编码每条数据的平均字节数
+     */
+    public Map<String, Object> measure(Map<Long, ?> values, int bucketSize) {
+        String base = BENCHMARK_KEY + System.currentTimeMillis() + ":";
+        long expireMillis = System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(30);
+        Set<String> jsonKeys = new LinkedHashSet<>();
+        Set<String> binaryKeys = new LinkedHashSet<>();
+        Set<String> bucketKeys = new LinkedHashSet<>();
+        long valueBytes = 0;
+        for (Map.Entry<Long, ?> entry : values.entrySet()) {
+            jsonKeys.add(base + "json:" + entry.getKey());
+            binaryKeys.add(base + "binary:" + entry.getKey());
+            bucketKeys.add(base + "hash:bucket:" + entry.getKey() / bucketSize);
+            valueBytes += serializer.serialize(entry.getValue(), expireMillis).length;
+        }
+        try {
+            // 1.分别按三种编码写入
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                values.forEach((id, value) -> {
+                    byte[] raw = serializer.serialize(value, expireMillis);
+                    connection.set(bytes(base + "json:" + id), bytes(JSONUtil.toJsonStr(value)));
+                    connection.set(bytes(base + "binary:" + id), raw);
+                    connection.hSet(bytes(base + "hash:bucket:" + id / bucketSize), bytes(String.valueOf(id)), raw);
+                });
+                return null;
+            });
+            // 2.统计内存占用
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("entries", values.size());
+            result.put("bucketSize", bucketSize);
+            result.put("avgValueBytes", values.isEmpty() ? 0 : valueBytes / values.size());
+            result.put("jsonBytesPerEntry", perEntry(jsonKeys, values.size()));
+            result.put("binaryBytesPerEntry", perEntry(binaryKeys, values.size()));
+            result.put("hashBytesPerEntry", perEntry(bucketKeys, values.size()));
+            // 桶超过listpack的阈值后会转为hashtable编码，内存占用明显增加
+            if (!bucketKeys.isEmpty()) {
+                ValueEncoding encoding = stringRedisTemplate.execute((RedisCallback<ValueEncoding>) connection ->
+                        connection.encodingOf(bytes(bucketKeys.iterator().next())));
+                result.put("hashEncoding", encoding == null ? null : encoding.raw());
+            }
+            return result;
+        } finally {
+            // 3.删除临时key
+            List<String> keys = new ArrayList<>(jsonKeys);
+            keys.addAll(binaryKeys);
+            keys.addAll(bucketKeys);
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    /**
+     * MEMORY USAGE key SAMPLES 0 统计全部元素
+     */
+    private long perEntry(Set<String> keys, int entries) {
+        if (entries == 0) {
+            return 0;
+        }
+        List<Object> usages = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                memoryUsage(connection, key);
+            }
+            return null;
+        });
+        long total = 0;
+        for (Object usage : usages) {
+            if (usage instanceof Number) {
+                total += ((Number) usage).longValue();
+            }
+        }
+        return total / entries;
+    }
+
+    private static void memoryUsage(RedisConnection connection, String key) {
+        connection.execute("MEMORY", bytes("USAGE"), bytes(key), bytes("SAMPLES"), bytes("0"));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}
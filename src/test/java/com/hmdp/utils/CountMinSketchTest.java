@@ -0,0 +1,120 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CountMinSketchTest {
+
+    private static final int WIDTH = 4096;
+
+    /**
+     * 10000个key，第i个访问 i % 100 + 1 次，另有一个访问5000次的热点key
+     */
+    private static Map<String, Long> counts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < 10000; i++) {
+            counts.put("cache:shop:" + i, (long) (i % 100 + 1));
+        }
+        counts.put("cache:shop:hot", 5000L);
+        return counts;
+    }
+
+    private static CountMinSketch sketch(Map<String, Long> counts) {
+        CountMinSketch sketch = new CountMinSketch(WIDTH);
+        counts.forEach(sketch::add);
+        return sketch;
+    }
+
+    @Test
+    void neverUnderestimate() {
+        Map<String, Long> counts = counts();
+        CountMinSketch sketch = sketch(counts);
+        counts.forEach((key, count) -> assertTrue(sketch.estimate(key) >= count, key));
+    }
+
+    @Test
+    void errorBound() {
+        Map<String, Long> counts = counts();
+        CountMinSketch sketch = sketch(counts);
+        long total = counts.values().stream().mapToLong(Long::longValue).sum();
+        // 每一行超过 e*N/width 的概率不超过1/e，4行取最小值后不超过 e^-4 ≈ 1.8%
+        double bound = Math.E * total / WIDTH;
+        long exceeded = counts.entrySet().stream()
+                .filter(e -> sketch.estimate(e.getKey()) - e.getValue() > bound)
+                .count();
+        assertTrue(exceeded <= counts.size() * 0.02, "超过误差上界的key数：" + exceeded);
+        // 热点key的相对误差很小，不会因为碰撞被误判或漏判
+        long hot = sketch.estimate("cache:shop:hot");
+        assertTrue(hot <= 5000 + bound, "热点key估算值：" + hot);
+    }
+
+    /**
+     * String.hashCode相同的key各自计数，不会在每一行都落到同一个位置
+     */
+    @Test
+    void hashCodeCollision() {
+        String[] keys = {"AaAa", "AaBB", "BBAa", "BBBB"};
+        CountMinSketch sketch = new CountMinSketch(WIDTH);
+        sketch.add(keys[0], 1000);
+        for (int i = 1; i < keys.length; i++) {
+            assertEquals(keys[0].hashCode(), keys[i].hashCode());
+            assertTrue(sketch.estimate(keys[i]) < 1000, keys[i]);
+        }
+        assertEquals(1000, sketch.estimate(keys[0]));
+    }
+
+    @Test
+    void unknownKey() {
+        CountMinSketch sketch = sketch(counts());
+        long total = counts().values().stream().mapToLong(Long::longValue).sum();
+        assertTrue(sketch.estimate("cache:shop:absent") <= Math.E * total / WIDTH);
+        assertEquals(0, new CountMinSketch(WIDTH).estimate("cache:shop:absent"));
+    }
+
+    @Test
+    void clear() {
+        CountMinSketch sketch = sketch(counts());
+        sketch.clear();
+        assertEquals(0, sketch.estimate("cache:shop:hot"));
+        assertEquals(0, sketch.estimate("cache:shop:1"));
+        sketch.add("cache:shop:1", 3);
+        assertEquals(3, sketch.estimate("cache:shop:1"));
+    }
+
+    /**
+     * 按 HotKeyDetector 的滑动窗口使用：每个分段一个sketch，前进一格清空最旧的分段，
+     * 不再访问的key经过一个窗口后估算值衰减到0
+     */
+    @Test
+    void slidingWindowDecay() {
+        int segments = 6;
+        CountMinSketch[] window = new CountMinSketch[segments];
+        for (int i = 0; i < segments; i++) {
+            window[i] = new CountMinSketch(WIDTH);
+        }
+        String key = "cache:shop:hot";
+        int current = 0;
+        window[current].add(key, 600);
+        assertEquals(600, estimate(window, key));
+        for (int rotated = 1; rotated < segments; rotated++) {
+            current = (current + 1) % segments;
+            window[current].clear();
+            assertEquals(600, estimate(window, key), "窗口内的访问不应过早衰减");
+        }
+        current = (current + 1) % segments;
+        window[current].clear();
+        assertEquals(0, estimate(window, key));
+    }
+
+    private static long estimate(CountMinSketch[] window, String key) {
+        long count = 0;
+        for (CountMinSketch sketch : window) {
+            count += sketch.estimate(key);
+        }
+        return count;
+    }
+}
@@ -0,0 +1,135 @@
+package com.hmdp.utils;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SignBitsTest {
+
+    /**
+     * 按 BITFIELD GET u{days} 0 的结果构造：最高位是1号，最低位是days号
+     */
+    private static long bits(int days, int... signDays) {
+        long bits = 0;
+        for (int day : signDays) {
+            bits |= 1L << (days - day);
+        }
+        return bits;
+    }
+
+    private static int[] range(int from, int to) {
+        return IntStream.rangeClosed(from, to).toArray();
+    }
+
+    @Test
+    void noSign() {
+        long bits = bits(31);
+        assertEquals(0, SignBits.count(bits));
+        assertEquals(0, SignBits.streak(bits));
+        assertEquals(0, SignBits.maxStreak(bits));
+        assertEquals(Collections.emptyList(), SignBits.days(bits, 31));
+    }
+
+    @Test
+    void todayNotSigned() {
+        // 今天15号还没签到，12~14号连续签到
+        long bits = bits(15, 1, 2, 12, 13, 14);
+        assertEquals(5, SignBits.count(bits));
+        assertEquals(3, SignBits.streak(bits));
+        assertEquals(3, SignBits.maxStreak(bits));
+        assertEquals(Arrays.asList(1, 2, 12, 13, 14), SignBits.days(bits, 15));
+    }
+
+    @Test
+    void todayAndYesterdayNotSigned() {
+        long bits = bits(15, 10, 11, 12, 13);
+        assertEquals(0, SignBits.streak(bits));
+        assertEquals(4, SignBits.maxStreak(bits));
+    }
+
+    @Test
+    void todaySigned() {
+        long bits = bits(15, 3, 4, 5, 6, 14, 15);
+        assertEquals(2, SignBits.streak(bits));
+        assertEquals(4, SignBits.maxStreak(bits));
+    }
+
+    @Test
+    void dayOneOnly() {
+        for (int days = 1; days <= 31; days++) {
+            long bits = bits(days, 1);
+            assertEquals(1L << (days - 1), bits);
+            assertEquals(1, SignBits.count(bits));
+            assertEquals(days <= 2 ? 1 : 0, SignBits.streak(bits), "days=" + days);
+            assertEquals(1, SignBits.maxStreak(bits));
+            assertEquals(Collections.singletonList(1), SignBits.days(bits, days));
+        }
+    }
+
+    @Test
+    void allDaysSigned() {
+        for (int days : new int[]{28, 29, 30, 31}) {
+            long bits = bits(days, range(1, days));
+            assertEquals((1L << days) - 1, bits);
+            assertEquals(days, SignBits.count(bits));
+            assertEquals(days, SignBits.streak(bits));
+            assertEquals(days, SignBits.maxStreak(bits));
+            assertEquals(IntStream.rangeClosed(1, days).boxed().collect(Collectors.toList()), SignBits.days(bits, days));
+        }
+    }
+
+    /**
+     * 与 SETBIT key {day-1} 1 写入的bitmap相同的字节
+     */
+    private static byte[] bitmap(int... signDays) {
+        int max = Arrays.stream(signDays).max().orElse(1);
+        byte[] raw = new byte[(max + 7) / 8];
+        for (int day : signDays) {
+            raw[(day - 1) / 8] |= (byte) (0x80 >>> ((day - 1) % 8));
+        }
+        return raw;
+    }
+
+    @Test
+    void packRoundTripWithDayOne() {
+        for (int days : new int[]{28, 29, 30, 31}) {
+            long packed = SignBits.pack(bitmap(1, 2, days));
+            // 1号在最高位，必须是正数且不超过无符号int
+            assertEquals(0x80000000L | 0x40000000L | 1L << (32 - days), packed);
+            assertTrue(packed > 0 && packed <= 0xFFFFFFFFL);
+            assertEquals(bits(days, 1, 2, days), SignBits.unpack(packed, days));
+        }
+        // 只签到1号时bitmap只有1个字节
+        assertEquals(0x80000000L, SignBits.pack(bitmap(1)));
+        assertEquals(bits(31, 1), SignBits.unpack(SignBits.pack(bitmap(1)), 31));
+        // 全月签到
+        long all = SignBits.pack(bitmap(range(1, 31)));
+        assertEquals(0xFFFFFFFEL, all);
+        assertEquals(bits(31, range(1, 31)), SignBits.unpack(all, 31));
+    }
+
+    @Test
+    void packMergeStaysUnsigned() {
+        // 重复归档时 bits = bits | VALUES(bits)，合并结果仍然在无符号int范围内
+        long merged = SignBits.pack(bitmap(1, 3)) | SignBits.pack(bitmap(2, 31));
+        assertTrue(merged <= 0xFFFFFFFFL);
+        assertEquals(bits(31, 1, 2, 3, 31), SignBits.unpack(merged, 31));
+    }
+
+    @Test
+    void monthEnd() {
+        // 月末最后一天签到，各月份天数不同，最后一天都在最低位
+        for (int days : new int[]{28, 29, 30, 31}) {
+            long bits = bits(days, 1, days - 1, days);
+            assertEquals(3, SignBits.count(bits));
+            assertEquals(2, SignBits.streak(bits));
+            assertEquals(2, SignBits.maxStreak(bits));
+            assertEquals(Arrays.asList(1, days - 1, days), SignBits.days(bits, days));
+        }
+    }
+}
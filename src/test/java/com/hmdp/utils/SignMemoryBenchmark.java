@@ -0,0 +1,139 @@
+package com.hmdp.utils;
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisPassword;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 签到内存占用对比：按bitmap写入一批用户一个月的签到记录，用 MEMORY USAGE 统计后换算成每百万用户的占用，
+ * 再与每次签到一行的估算占用对比，统计完成后删除临时key
+ * <p>
+ * 需要可以访问的Redis，通过 -Dredis.host -Dredis.port -Dredis.password 指定，直接运行main方法
+ */
+public class SignMemoryBenchmark {
+
+    private static final String BENCHMARK_KEY = "benchmark:sign:";
+
+    private static final long MILLION = 1_000_000L;
+
+    /**
+     * 每次签到一行（id, user_id, year, month, date, is_backup）在聚簇索引中的大小（字节）：行头5 + 事务id 6 + 回滚指针7 + id 8 + user_id 8
+     * + year 1 + month 1 + date 3 + is_backup 1 + 空值列表1，再按页的填充率约15/16换算
+     */
+    private static final double ROW_BYTES = 41 * 16 / 15.0;
+
+    /**
+     * 按用户查询签到需要的 (user_id, date) 二级索引一条记录的大小：行头5 + user_id 8 + date 3 + id 8
+     */
+    private static final double INDEX_BYTES = 24 * 16 / 15.0;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    public SignMemoryBenchmark(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    public static void main(String[] args) {
+        RedisStandaloneConfiguration config = new RedisStandaloneConfiguration(
+                System.getProperty("redis.host", "192.168.81.129"), Integer.getInteger("redis.port", 6379));
+        config.setPassword(RedisPassword.of(System.getProperty("redis.password", "root")));
+        LettuceConnectionFactory factory = new LettuceConnectionFactory(config);
+        factory.afterPropertiesSet();
+        try {
+            SignMemoryBenchmark benchmark = new SignMemoryBenchmark(new StringRedisTemplate(factory));
+            for (double signRate : new double[]{0.1, 0.5, 0.9}) {
+                System.out.println(benchmark.measure(100000, 31, signRate));
+            }
+        } finally {
+            factory.destroy();
+        }
+    }
+
+    /**
+     * @param users    写入的用户数
+     * @param days     当月天数
+     * @param signRate 每天签到的概率
+     * @return bitmap与行存储每百万用户每月的字节数
+     */
+    public Map<String, Object> measure(int users, int days, double signRate) {
+        String base = BENCHMARK_KEY + System.currentTimeMillis() + ":";
+        List<String> keys = new ArrayList<>(users);
+        for (int userId = 1; userId <= users; userId++) {
+            keys.add(base + userId);
+        }
+        try {
+            // 1.按签到概率写入bitmap，至少签到一天，否则key不存在
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (String key : keys) {
+                    byte[] rawKey = bytes(key);
+                    connection.setBit(rawKey, random.nextInt(days), true);
+                    for (int day = 0; day < days; day++) {
+                        if (random.nextDouble() < signRate) {
+                            connection.setBit(rawKey, day, true);
+                        }
+                    }
+                }
+                return null;
+            });
+            // 2.统计内存占用，重复签到同一天只算一行
+            long bitmapBytes = total(keys);
+            List<Object> counts = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                keys.forEach(key -> connection.bitCount(bytes(key)));
+                return null;
+            });
+            long rows = 0;
+            for (Object count : counts) {
+                rows += ((Number) count).longValue();
+            }
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("users", users);
+            result.put("days", days);
+            result.put("signsPerUser", (double) rows / users);
+            result.put("bitmapBytesPerUser", bitmapBytes / users);
+            result.put("bitmapBytesPerMillionUsers", bitmapBytes * MILLION / users);
+            result.put("rowBytesPerMillionUsers", (long) (rows * (ROW_BYTES + INDEX_BYTES) * MILLION / users));
+            return result;
+        } finally {
+            // 3.删除临时key
+            stringRedisTemplate.delete(keys);
+        }
+    }
+
+    /**
+     * MEMORY USAGE key SAMPLES 0
+     */
+    private long total(List<String> keys) {
+        List<Object> usages = stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            for (String key : keys) {
+                memoryUsage(connection, key);
+            }
+            return null;
+        });
+        long total = 0;
+        for (Object usage : usages) {
+            if (usage instanceof Number) {
+                total += ((Number) usage).longValue();
+            }
+        }
+        return total;
+    }
+
+    private static void memoryUsage(RedisConnection connection, String key) {
+        connection.execute("MEMORY", bytes("USAGE"), bytes(key), bytes("SAMPLES"), bytes("0"));
+    }
+
+    private static byte[] bytes(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+}